@@ -20,6 +20,8 @@ import org.apache.hadoop.mapreduce.StatusReporter;
 
 import org.apache.hadoop.mapred.JobClient;
 
+import org.apache.hadoop.mapreduce.approx.index.IndexMapper;
+import org.apache.hadoop.mapreduce.approx.index.LazyIndex;
 import org.apache.hadoop.mapreduce.approx.lib.input.SampleFileSplit;
 import org.apache.hadoop.mapreduce.approx.lib.input.SampleLineRecordReader;
 import org.apache.hadoop.mapreduce.approx.lib.input.SampleRecordReader;
@@ -128,9 +130,21 @@ public abstract class ApproximateMapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT extends
 			newcontext = new ApproxContext(context);
 		}
 
+		// A full scan of a table without index also builds the index
+		IndexMapper indexBuilder = null;
+		if (LazyIndex.isBuilding(conf)) {
+			indexBuilder = LazyIndex.start(context);
+		}
+
 		while (context.nextKeyValue()) {
 			//LOG.info("map key:" + context.getCurrentValue().toString());
 			map(context.getCurrentKey(), context.getCurrentValue(), newcontext);
+			if (indexBuilder != null) {
+				LazyIndex.add(indexBuilder, context);
+			}
+		}
+		if (indexBuilder != null) {
+			LazyIndex.finish(indexBuilder, context);
 		}
 
 		cleanup(context);
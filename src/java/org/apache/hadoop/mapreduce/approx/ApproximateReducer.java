@@ -76,6 +76,9 @@ public abstract class ApproximateReducer<KEYIN extends Text, VALUEIN, KEYOUT, VA
 	// cluster weight
 	protected ArrayList<Double> wi;
 	protected ArrayList<Double> wi2;
+	// clusters of the take-all stratum, read for certain
+	protected ArrayList<Boolean> ci;
+	protected ArrayList<Boolean> ci2;
 	// size of each cluster
 	protected ArrayList<Long> mi;
 	protected ArrayList<Long> mi2;
@@ -126,6 +129,7 @@ public abstract class ApproximateReducer<KEYIN extends Text, VALUEIN, KEYOUT, VA
 		if (!precise) {
 			ti = new ArrayList<Double>();
 			wi = new ArrayList<Double>();
+			ci = new ArrayList<Boolean>();
 			mi = new ArrayList<Long>();
 			//yi_mean = new ArrayList<Double>();
 			sw = new ArrayList<Double>();
@@ -172,6 +176,8 @@ public abstract class ApproximateReducer<KEYIN extends Text, VALUEIN, KEYOUT, VA
 					ti = new ArrayList<Double>();
 					wi2 = wi;
 					wi = new ArrayList<Double>();
+					ci2 = ci;
+					ci = new ArrayList<Boolean>();
 					mi2 = mi;
 					mi = new ArrayList<Long>();
 					//yi_mean = new ArrayList<Double>();
@@ -204,6 +210,7 @@ public abstract class ApproximateReducer<KEYIN extends Text, VALUEIN, KEYOUT, VA
 			double interval = result[1];
 			context.write((KEYOUT) new Text(prevKey), (VALUEOUT) new ApproximateDoubleWritable(tauhat, interval));
 			wi.clear();
+			ci.clear();
 			ti.clear();
 			mi.clear();
 			sw.clear();
@@ -259,7 +266,10 @@ public abstract class ApproximateReducer<KEYIN extends Text, VALUEIN, KEYOUT, VA
 						sw.add(0.0);
 						//return;
 					}
-					wi.add(res);
+					// certain clusters are flagged in ci, their weight 1.0 only serves the estimators without a take-all stratum
+					boolean certain = res.doubleValue() == SegmentsMap.CERTAIN;
+					wi.add(certain ? 1.0 : res);
+					ci.add(certain);
 					if (wi.size() == ti.size() +  1) {
 						ti.add(ti.get(ti.size() - 1));
 					}
@@ -400,18 +410,11 @@ public abstract class ApproximateReducer<KEYIN extends Text, VALUEIN, KEYOUT, VA
 		LOG.info("segments:" + String.valueOf(ti.size()));
 		LOG.info("totalSize:" + String.valueOf(totalSize));
 		if (app.equals("total")) {
-			double sum = 0.0;
-			for (int i = 0; i < ti.size(); i++ ) {
-				double weighted = ti.get(i).doubleValue() / wi.get(i).doubleValue();
-				sum += weighted;
-				//LOG.info("ti/wi:" + String.valueOf(ti.get(i).doubleValue()) + "/" + String.valueOf(wi.get(i).doubleValue()));
-				//LOG.info("weighted total:" + String.valueOf(weighted));
-			}
-			total = sum / ti.size();
+			total = getTotal(ti, wi, getDraws(wi, ci), null);
 			LOG.info("total:" + String.valueOf(total));
 			double resample[] = new double[800];
 			for (int i = 0; i < 800; i++) {
-				resample[i] = resampleSum();
+				resample[i] = resampleSum(i);
 				//LOG.info("resample:" + String.valueOf(resample[i]));
 			}
 			Percentile perc = new Percentile();
@@ -422,29 +425,17 @@ public abstract class ApproximateReducer<KEYIN extends Text, VALUEIN, KEYOUT, VA
 			double interval2 =  perc.evaluate(97.5) - total;
 			LOG.info("interval2:" + String.valueOf(interval2));
 		} else if (app.equals("ratio")) {
-			double sum1 = 0.0;
 			LOG.info("ti2:" + String.valueOf(ti2.size()));
 			LOG.info("wi2:" + String.valueOf(wi2.size()));
-			for (int i = 0; i < ti2.size(); i++ ) {
-				double weighted = ti2.get(i).doubleValue() / wi2.get(i).doubleValue();
-				sum1 += weighted;
-				//LOG.info("ti/wi:" + String.valueOf(ti.get(i).doubleValue()) + "/" + String.valueOf(wi.get(i).doubleValue()));
-				//LOG.info("weighted total:" + String.valueOf(weighted));
-			}
-			double total1 = sum1 / ti2.size();
-			double sum2 = 0.0;
-			for (int i = 0; i < ti.size(); i++ ) {
-				double weighted = ti.get(i).doubleValue() / wi.get(i).doubleValue();
-				sum2 += weighted;
-				//LOG.info("ti/wi:" + String.valueOf(ti.get(i).doubleValue()) + "/" + String.valueOf(wi.get(i).doubleValue()));
-				//LOG.info("weighted total:" + String.valueOf(weighted));
-			}
-			double total2 = sum2 / ti.size();
+			// both keys come from the same segments, so they share their draws
+			int[] draws = getDraws(wi, ci);
+			double total1 = getTotal(ti2, wi2, draws, null);
+			double total2 = getTotal(ti, wi, draws, null);
 			double ratio = total1 / total2;
 			LOG.info("ratio:" + String.valueOf(ratio));
 			double resample[] = new double[800];
 			for (int i = 0; i < 800; i++) {
-				resample[i] = resampleRatio();
+				resample[i] = resampleRatio(i);
 				//LOG.info("resample:" + String.valueOf(resample[i]));
 			}
 			Percentile perc = new Percentile();
@@ -459,7 +450,7 @@ public abstract class ApproximateReducer<KEYIN extends Text, VALUEIN, KEYOUT, VA
 			percent = percent / resample.length;
 			NormalDistribution normDist = new NormalDistribution();
 			double z0 = normDist.inverseCumulativeProbability(percent);
-			double a = estimateA(ti2.size());
+			double a = estimateA();
 			double left  = z0 + (z0 - 1.960) / (1 - a * (z0 - 1.960));
 			double right = z0 + (z0 + 1.960) / (1 - a * (z0 + 1.960));
 			left = normDist.cumulativeProbability(left) * 100;
@@ -475,28 +466,19 @@ public abstract class ApproximateReducer<KEYIN extends Text, VALUEIN, KEYOUT, VA
 		}
 		return new double[] {0, 0};
 	}
-	private double estimateA(int size) {
+	/**
+	 * Acceleration of the BCa interval of the ratio, from the jackknife leaving out one draw
+	 * at a time.
+	 */
+	private double estimateA() {
+		int[] draws = getDraws(wi, ci);
+		int size = draws.length;
 		double[] jackknife = new double[size];
+		int[] counts = new int[size];
 		for (int j = 0; j < size; j++) {
-			double sum1 = 0.0;
-			for (int i = 0; i < ti2.size(); i++ ) {
-				if (i == j) continue;
-				double weighted = ti2.get(i).doubleValue() / wi2.get(i).doubleValue();
-				sum1 += weighted;
-				//LOG.info("ti/wi:" + String.valueOf(ti.get(i).doubleValue()) + "/" + String.valueOf(wi.get(i).doubleValue()));
-				//LOG.info("weighted total:" + String.valueOf(weighted));
-			}
-			double total1 = sum1 / ti2.size();
-			double sum2 = 0.0;
-			for (int i = 0; i < ti.size(); i++ ) {
-				if (i == j) continue;
-				double weighted = ti.get(i).doubleValue() / wi.get(i).doubleValue();
-				sum2 += weighted;
-				//LOG.info("ti/wi:" + String.valueOf(ti.get(i).doubleValue()) + "/" + String.valueOf(wi.get(i).doubleValue()));
-				//LOG.info("weighted total:" + String.valueOf(weighted));
-			}
-			double total2 = sum2 / ti.size();
-			jackknife[j] = total1 / total2;
+			Arrays.fill(counts, 1);
+			counts[j] = 0;
+			jackknife[j] = getTotal(ti2, wi2, draws, counts) / getTotal(ti, wi, draws, counts);
 		}
 		double avg_jack = 0.0;
 		for (int i = 0; i < size; i++) {
@@ -513,54 +495,86 @@ public abstract class ApproximateReducer<KEYIN extends Text, VALUEIN, KEYOUT, VA
 		return 1.0 / 6 * (nominator / Math.pow(denominator, 1.5));
 
 	}
-	private double resampleRatio() {
-		int size = ti.size();
-		Random rnd = new Random();
-		int sample[] = new int[size];
-		for (int i = 0; i < size - 1; i++ ) {
-			sample[rnd.nextInt(size)]++;
-		}
-		double sum1 = 0.0;
-		for (int i = 0; i < size; i++ ) {
-			if (sample[i] > 0) {
-				double weighted = ti2.get(i).doubleValue() * ((1.0 / wi2.get(i).doubleValue()) * (1.0 / (size - 1)) * sample[i]);
-				sum1 += weighted;
-			}
-			//LOG.info("ti/wi:" + String.valueOf(ti.get(i).doubleValue()) + "/" + String.valueOf(wi.get(i).doubleValue()));
-			//LOG.info("weighted total:" + String.valueOf(weighted));
-		}
-		double sum2 = 0.0;
-		for (int i = 0; i < size; i++ ) {
-			if (sample[i] > 0) {
-				double weighted = ti.get(i).doubleValue() * ((1.0 / wi.get(i).doubleValue()) * (1.0 / (size - 1)) * sample[i]);
-				sum2 += weighted;
+
+	/**
+	 * Clusters that were drawn rather than read for certain: not marked certain in a with
+	 * replacement plan, with inclusion probability below 1 in a Poisson plan. Only these
+	 * are resampled.
+	 */
+	private int[] getDraws(ArrayList<Double> w, ArrayList<Boolean> c) {
+		boolean poisson = SegmentsMap.isPoisson(approxConf);
+		int[] draws = new int[w.size()];
+		int n = 0;
+		for (int i = 0; i < w.size(); i++) {
+			if (poisson ? w.get(i).doubleValue() < 1.0 : !c.get(i).booleanValue()) {
+				draws[n++] = i;
 			}
-			//LOG.info("ti/wi:" + String.valueOf(ti.get(i).doubleValue()) + "/" + String.valueOf(wi.get(i).doubleValue()));
-			//LOG.info("weighted total:" + String.valueOf(weighted));
 		}
-		return sum1 / sum2;
-
+		return Arrays.copyOf(draws, n);
 	}
-	private double resampleSum() {
-		//int size = ti.size() - 1;
+
+	/**
+	 * Estimated total of t: the clusters read for certain add their exact totals, and draw j
+	 * counts counts[j] times (once with counts null). The draws give mean(ti/wi) in a with
+	 * replacement plan and sum(ti/pi), scaled from the counted draws to all of them, in a
+	 * Poisson plan.
+	 */
+	private double getTotal(ArrayList<Double> t, ArrayList<Double> w, int[] draws, int[] counts) {
+		boolean[] drawn = new boolean[t.size()];
 		double sum = 0.0;
-		int size = ti.size();
-		Random rnd = new Random();
+		long counted = 0;
+		for (int j = 0; j < draws.length; j++) {
+			int times = counts == null ? 1 : counts[j];
+			drawn[draws[j]] = true;
+			sum += times * t.get(draws[j]).doubleValue() / w.get(draws[j]).doubleValue();
+			counted += times;
+		}
+		double exact = 0.0;
+		for (int i = 0; i < t.size(); i++) {
+			if (!drawn[i]) {
+				exact += t.get(i).doubleValue();
+			}
+		}
+		if (counted == 0) {
+			return exact;
+		}
+		return exact + (SegmentsMap.isPoisson(approxConf) ? sum * draws.length / counted : sum / counted);
+	}
+
+	/**
+	 * Draw counts of one bootstrap replicate: size - 1 draws with replacement out of the
+	 * size draws of the sample, or each draw once if there are fewer than two.
+	 */
+	private int[] resample(int size, int replicate) {
 		int sample[] = new int[size];
+		if (size < 2) {
+			Arrays.fill(sample, 1);
+			return sample;
+		}
+		Random rnd = SamplingRandom.get(approxConf, prevKey + "-" + replicate);
 		for (int i = 0; i < size - 1; i++ ) {
 			sample[rnd.nextInt(size)]++;
 		}
-		for (int i = 0; i < size; i++ ) {
-			if (sample[i] > 0) {
-				double weighted = ti.get(i).doubleValue() * ((1.0 / wi.get(i).doubleValue()) * (1.0 / (size - 1)) * sample[i]);
-				sum += weighted;
-			}
-			//LOG.info("ti/wi:" + String.valueOf(ti.get(i).doubleValue()) + "/" + String.valueOf(wi.get(i).doubleValue()));
-			//LOG.info("weighted total:" + String.valueOf(weighted));
-		}
-		return sum;
+		return sample;
+	}
+
+	private double resampleRatio(int replicate) {
+		int[] draws = getDraws(wi, ci);
+		int[] sample = resample(draws.length, replicate);
+		return getTotal(ti2, wi2, draws, sample) / getTotal(ti, wi, draws, sample);
+	}
+
+	private double resampleSum(int replicate) {
+		int[] draws = getDraws(wi, ci);
+		return getTotal(ti, wi, draws, resample(draws.length, replicate));
 	}
 	protected double[] estimateCurrentResult(boolean reset) {
+		if (SegmentsMap.isPoisson(approxConf)) {
+			return estimateHorvitzThompson();
+		}
+		if (SegmentsMap.getCertaintyThreshold(approxConf) > 0) {
+			return estimateWithCertainty();
+		}
 		// Estimate the result
 		String app = approxConf.get("mapred.sampling.app", "total");
 		double s2 = 0.0;
@@ -626,6 +640,101 @@ public abstract class ApproximateReducer<KEYIN extends Text, VALUEIN, KEYOUT, VA
 		}
 	}
 
+	/**
+	 * Estimate of a with replacement sample with a take-all stratum: clusters planned with
+	 * weight {@link SegmentsMap#CERTAIN} were read for certain and add their exact totals,
+	 * the other ones, a draw of probability 1.0 included, are draws averaged as mean(ti/wi),
+	 * and only the draws carry sampling variance.
+	 */
+	protected double[] estimateWithCertainty() {
+		String app = approxConf.get("mapred.sampling.app", "total");
+		double exact = 0.0, exactSize = 0.0;
+		ArrayList<Integer> draws = new ArrayList<Integer>();
+		for (int i = 0; i < ti.size(); i++ ) {
+			if (ci.get(i)) {
+				exact += ti.get(i).doubleValue();
+				exactSize += mi.get(i).longValue();
+			} else {
+				draws.add(i);
+			}
+		}
+		int n = draws.size();
+		LOG.info("segments:" + String.valueOf(ti.size()) + ", certain:" + String.valueOf(ti.size() - n));
+		double sum = 0.0, population = 0.0;
+		for (int i : draws) {
+			sum += ti.get(i).doubleValue() / wi.get(i).doubleValue();
+			population += mi.get(i).longValue() / wi.get(i).doubleValue();
+		}
+		total = exact + (n > 0 ? sum / n : 0);
+		population = exactSize + (n > 0 ? population / n : 0);
+		variance = 0.0;
+		if (app.equals("total")) {
+			if (n > 1) {
+				double mean = sum / n;
+				for (int i : draws) {
+					variance += Math.pow(ti.get(i).doubleValue() / wi.get(i).doubleValue() - mean, 2);
+				}
+				variance = variance / (n - 1) / n;
+			}
+			double std = Math.sqrt(variance);
+			LOG.info("total:" + String.valueOf(total));
+			LOG.info("var:" + String.valueOf(variance));
+			return new double[] {total, tscore * std};
+		}
+		avg = total / population;
+		if (n > 1) {
+			for (int i : draws) {
+				variance += Math.pow((ti.get(i).doubleValue() - avg * mi.get(i).longValue()) / wi.get(i).doubleValue(), 2);
+			}
+			variance = variance / (n - 1) / n / Math.pow(population, 2);
+		}
+		double std = Math.sqrt(variance);
+		LOG.info("avg:" + String.valueOf(avg));
+		LOG.info("var:" + String.valueOf(variance));
+		return new double[] {avg, tscore * std};
+	}
+
+	/**
+	 * Horvitz-Thompson estimate for samples without replacement, where wi holds the
+	 * inclusion probability of each cluster: total = sum(ti/pi) with the Poisson sampling
+	 * variance sum((1-pi)*ti^2/pi^2). The average divides by the estimated population
+	 * sum(mi/pi), with the linearized variance of the ratio.
+	 */
+	protected double[] estimateHorvitzThompson() {
+		String app = approxConf.get("mapred.sampling.app", "total");
+		LOG.info("segments:" + String.valueOf(ti.size()));
+		double sum = 0.0;
+		for (int i = 0; i < ti.size(); i++ ) {
+			sum += ti.get(i).doubleValue() / wi.get(i).doubleValue();
+		}
+		total = sum;
+		variance = 0.0;
+		if (app.equals("total")) {
+			for (int i = 0; i < ti.size(); i++ ) {
+				double pi = wi.get(i).doubleValue();
+				variance += (1 - pi) * Math.pow(ti.get(i).doubleValue() / pi, 2);
+			}
+			double std = Math.sqrt(variance);
+			LOG.info("total:" + String.valueOf(total));
+			LOG.info("var:" + String.valueOf(variance));
+			return new double[] {total, tscore * std};
+		}
+		double population = 0.0;
+		for (int i = 0; i < mi.size(); i++) {
+			population += mi.get(i).longValue() / wi.get(i).doubleValue();
+		}
+		avg = total / population;
+		for (int i = 0; i < ti.size(); i++ ) {
+			double pi = wi.get(i).doubleValue();
+			variance += (1 - pi) * Math.pow((ti.get(i).doubleValue() - avg * mi.get(i).longValue()) / pi, 2);
+		}
+		variance = variance / Math.pow(population, 2);
+		double std = Math.sqrt(variance);
+		LOG.info("avg:" + String.valueOf(avg));
+		LOG.info("var:" + String.valueOf(variance));
+		return new double[] {avg, tscore * std};
+	}
+
 	private long estimateSampleSize() {
 		double y_mean = 0.0;
 		int clusterSize = ti.size();
@@ -0,0 +1,57 @@
+package org.apache.hadoop.mapreduce.approx;
+
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Random streams of a query. Without map.input.sampling.seed every stream is unseeded;
+ * with it each stream name (a table file and group key, a bootstrap replicate) gets its
+ * own generator seeded from a splitmix64 mix of the seed and a 64-bit FNV-1a hash of the
+ * name, so identical queries draw identical plans and results.
+ * Coordinated plans instead give every segment a permanent random number, so queries
+ * comparing it to their own inclusion probabilities pick overlapping segments.
+ */
+public class SamplingRandom {
+
+	public static Random get(Configuration conf, String stream) {
+		String seed = conf.get("map.input.sampling.seed");
+		if (seed == null) {
+			return new Random();
+		}
+		return new Random(mix(Long.parseLong(seed) * 0x9E3779B97F4A7C15L + hash(stream)));
+	}
+
+	/**
+	 * Stream of a group of one table file, so the files of a table draw independently.
+	 */
+	public static Random get(Configuration conf, Path file, String stream) {
+		return get(conf, file.toUri().getPath() + ":" + stream);
+	}
+
+	/**
+	 * Permanent random number in [0, 1) of the segment of a table file at offset,
+	 * the same for every query until map.input.sampling.coordinated.salt changes.
+	 */
+	public static double getPermanent(Configuration conf, Path file, long offset) {
+		String name = conf.get("map.input.table.name", "") + ":" + file.toUri().getPath();
+		long z = mix(hash(name) * 0x9E3779B97F4A7C15L + conf.getLong("map.input.sampling.coordinated.salt", 0));
+		z = mix(z + offset);
+		return (z >>> 11) * 0x1.0p-53;
+	}
+
+	private static long hash(String name) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			h = (h ^ name.charAt(i)) * 0x100000001B3L;
+		}
+		return h;
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -2,18 +2,31 @@ package org.apache.hadoop.mapreduce.approx;
 
 import org.apache.hadoop.mapreduce.approx.WeightedRandomSelector;
 import org.apache.hadoop.mapreduce.approx.WeightedRandomSelector.WeightedItem;
+import org.apache.hadoop.mapreduce.approx.index.IndexBootstrap;
+import org.apache.hadoop.mapreduce.approx.index.IndexMapper;
+import org.apache.hadoop.mapreduce.approx.index.IndexShards;
 
 import java.io.IOException;
 import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.Iterator;
 import java.util.Map;
 import java.lang.Math;
@@ -22,6 +35,7 @@ import java.util.regex.Pattern;
 import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -36,15 +50,36 @@ public class SegmentsMap {
   private Path path;
   private static String FILE_PARENT = "/index/table"; // e.g. "hdfs://brick0:54310/metis";
   private static String FILE_PREFIX = "part-r-0000";
+  // what the target of a Poisson plan counts
+  private static final int COST_RECORDS = 0;
+  private static final int COST_SEGMENTS = 1;
+  private static final int COST_BYTES = 2;
+  // bytes each group may read, with a byte budget
+  private final Map<String, Double> byteBudgets = new HashMap<String, Double>();
+  // blocks of the file, for locality aware plans
+  private BlockLocation[] locations;
+  // draws of the group planned by this thread, merged once all groups are done
+  private final ThreadLocal<List<Draw>> pending = new ThreadLocal<List<Draw>>();
 
   public SegmentsMap (Configuration conf, Path path) {
     this.conf = conf;
     this.path = path;
   }
+
+  /**
+   * Blocks of the file with their replicas; with map.input.sampling.locality the Poisson
+   * draws are spread evenly over the nodes holding them.
+   */
+  public void setLocations(BlockLocation[] locations) {
+    this.locations = locations;
+  }
   public static class Segment implements Comparable<Segment> {
 
 
     public int compareTo(Segment other) {
+      if (this.offset == other.getOffset()) {
+        return 0;
+      }
       return this.offset > other.getOffset() ? 1 : -1 ;
     }
 
@@ -55,11 +90,16 @@ public class SegmentsMap {
     private ArrayList<Long> frequency;
     private ArrayList<String> keyword;
     private Hashtable<String, Long> histogram;
+    // ordinal of the HDFS block holding the segment, -1 for indexes without it
+    private long block;
+    // measure of the segment from its magnitude buckets, -1 if not known
+    private double measure = -1;
 
     public Segment(long offset, long length, long rows) {
       this. offset = offset;
       this.length = length;
       this.rows = rows;
+      this.block = -1;
       //this.frequency = new ArrayList<Long>();
       //this.keyword = new ArrayList<String>();
       this.histogram = new Hashtable<String, Long>();
@@ -73,6 +113,9 @@ public class SegmentsMap {
     public void setRows(long rows) {
       this.rows = rows;
     }
+    public void setBlock(long block) {
+      this.block = block;
+    }
     // public void addFrequency(long frequency){
     //   this.frequency.add(frequency);
     // }
@@ -83,7 +126,22 @@ public class SegmentsMap {
       this.histogram.put(keyword, frequency);
     }
 
-    public int getKeyWeightDep(String key) {
+    /**
+     * Grow this segment over the next one in the file, summing rows and histograms.
+     */
+    public void append(Segment next) {
+      this.length += next.getLength();
+      this.rows += next.getRows();
+      if (this.measure >= 0 || next.measure >= 0) {
+        this.measure = Math.max(0, this.measure) + Math.max(0, next.measure);
+      }
+      for (Map.Entry<String, Long> entry : next.histogram.entrySet()) {
+        Long frequency = this.histogram.get(entry.getKey());
+        this.histogram.put(entry.getKey(), frequency == null ? entry.getValue() : frequency + entry.getValue());
+      }
+    }
+
+    public long getKeyWeightDep(String key) {
       String[] fields = key.split(Pattern.quote("+*+"));
       double w = 1;
       double w1 = (histogram.get(fields[0]) / (double)rows);
@@ -97,10 +155,10 @@ public class SegmentsMap {
       //   }
       // }
       w = Math.pow(w2 * w3 * w1, 1.0 / 3);
-      return (int)Math.round(rows * w);
+      return Math.round(rows * w);
     }
 
-    public int getKeyWeight(String key) {
+    public long getKeyWeight(String key) {
       //return (double)frequency[0]/rows;
 
       String[] fields = key.split(Pattern.quote("+*+"));
@@ -113,7 +171,7 @@ public class SegmentsMap {
         }
       }
 
-      return (int)Math.round(rows * w);
+      return Math.round(rows * w);
     }
     public long getRows() {
       return rows;
@@ -124,10 +182,43 @@ public class SegmentsMap {
     public long getLength() {
       return length;
     }
+    public long getBlock() {
+      return block;
+    }
+
+    public void addMeasure(double measure) {
+      this.measure = Math.max(0, this.measure) + measure;
+    }
+
+    /**
+     * Mean measure of a record of the segment, at least 1 so that no matching segment is
+     * left out; 1 without magnitude buckets.
+     */
+    public double getMagnitude() {
+      return measure < 0 ? 1.0 : Math.max(1.0, measure / rows);
+    }
 
     //*************** info used for sampling******************************************
     private String keys;
     private String weights;
+    private boolean selected;
+    private String stratum = "";
+
+    public String getStratum() {
+      return stratum;
+    }
+
+    public void setStratum(String stratum) {
+      this.stratum = stratum;
+    }
+
+    public boolean isSelected() {
+      return selected;
+    }
+
+    public void setSelected(boolean selected) {
+      this.selected = selected;
+    }
 
     public void addWeight(double weight) {
       if (this.weights == null) {
@@ -153,19 +244,47 @@ public class SegmentsMap {
       return keys;
     }
 
+    /**
+     * Records of the segment matching any group it was sampled for, from the histograms.
+     */
+    public long getMatchingRecords() {
+      if (keys == null) {
+        return 0;
+      }
+      long records = 0;
+      Set<String> seen = new HashSet<String>();
+      for (String key : keys.split(Pattern.quote("*+*"))) {
+        if (seen.add(key)) {
+          records += getKeyWeight(key);
+        }
+      }
+      return Math.min(rows, records);
+    }
+
   }
 
 
 
   public Segment[] getSampleSegmentsList() {
 
-    List<Segment> sampleSegmentsList = new ArrayList<Segment>();
     //array need to be sorted based offset.
     String[] whereKeys = conf.get("map.input.where.clause", null).split(Pattern.quote(","));
     String groupBy = conf.get("map.input.groupby.clause", null);
 
-    ArrayList<String> filterKeys = new ArrayList<String>();
+    final ArrayList<String> filterKeys = new ArrayList<String>();
     Segment[] keysSegments =  this.retrieveKeyHistogram(whereKeys, groupBy, filterKeys);
+    this.allocateByteBudget(keysSegments, filterKeys);
+    // sorted once, so systematic draws and the final collect are linear sweeps
+    Arrays.sort(keysSegments);
+    if (conf.get("map.input.sampling.measure") != null) {
+      this.loadMagnitudes(keysSegments, conf.get("map.input.sampling.measure"));
+    }
+    if (conf.getLong("map.input.sampling.supersegment.bytes", 0) > 0) {
+      keysSegments = this.coarsen(keysSegments, conf.getLong("map.input.sampling.supersegment.bytes", 0));
+    }
+    if (conf.get("map.input.sampling.strata") != null) {
+      this.assignStrata(keysSegments, conf.get("map.input.sampling.strata"));
+    }
     List<WeightedItem<Segment>> weightedSegs = new ArrayList<WeightedItem<Segment>>(keysSegments.length);
 
 
@@ -175,112 +294,481 @@ public class SegmentsMap {
     }
 
 
-    if (! conf.getBoolean("map.input.sampling.error", false)) {
+    if (conf.getBoolean("map.input.sampling.shared", false) && conf.get("map.input.sample.budget") == null
+        && !conf.get("mapred.sampling.app", "total").equals("ratio")) {
+      this.sharedProcess(weightedSegs, filterKeys);
+    } else if (! conf.getBoolean("map.input.sampling.error", false)) {
       if (conf.getBoolean("map.input.sampling.ratio", false)) {
-        double ratio = Double.parseDouble(conf.get("map.input.sample.ratio.value", "0.01"));
-        String app = conf.get("mapred.sampling.app", "total");
-        for (String filterKey : filterKeys) {
-          if (app.equals("ratio")) {
-            double total1 = 0.0, total2 = 0.0;
-            String[] fields = filterKey.split(Pattern.quote("+*+"));
-            for (WeightedItem<Segment> seg : weightedSegs) {
-              total1 += seg.getItem().getKeyWeight(fields[0]);
-              total2 += seg.getItem().getKeyWeight(fields[1]);
-            }
-            double weight = 0.0;
-            for (WeightedItem<Segment> seg : weightedSegs) {
-              weight = (seg.getItem().getKeyWeight(fields[0]) / total1 + seg.getItem().getKeyWeight(fields[1]) / total2) * 0.5;
-              seg.setWeight((int)Math.round(100000 * weight));
+        final double ratio = Double.parseDouble(conf.get("map.input.sample.ratio.value", "0.01"));
+        final String app = conf.get("mapred.sampling.app", "total");
+        this.planGroups(weightedSegs, filterKeys.size(), new GroupPlan() {
+          void plan(List<WeightedItem<Segment>> weightedSegs, int g) {
+            String filterKey = filterKeys.get(g);
+            if (app.equals("ratio")) {
+              double total1 = 0.0, total2 = 0.0;
+              String[] fields = filterKey.split(Pattern.quote("+*+"));
+              for (WeightedItem<Segment> seg : weightedSegs) {
+                total1 += seg.getItem().getKeyWeight(fields[0]);
+                total2 += seg.getItem().getKeyWeight(fields[1]);
+              }
+              double weight = 0.0;
+              for (WeightedItem<Segment> seg : weightedSegs) {
+                weight = (seg.getItem().getKeyWeight(fields[0]) / total1 + seg.getItem().getKeyWeight(fields[1]) / total2) * 0.5;
+                seg.setWeight(Math.round(100000 * weight));
+              }
+            } else {
+              for (WeightedItem<Segment> seg : weightedSegs) {
+                seg.setWeight(seg.getItem().getKeyWeight(filterKey));
+                //seg.setWeightDep(seg.getItem().getKeyWeightDep(filterKey));
+              }
             }
-          } else {
+            randomProcess(weightedSegs, filterKey, ratio);
+          }
+        });
+      } else if (conf.get("map.input.sample.budget") != null) {
+        this.budgetProcess(weightedSegs, filterKeys);
+      } else {
+        final long sampleSize = conf.getLong("map.input.sample.size", 100000);
+        this.planGroups(weightedSegs, filterKeys.size(), new GroupPlan() {
+          void plan(List<WeightedItem<Segment>> weightedSegs, int g) {
+            String filterKey = filterKeys.get(g);
             for (WeightedItem<Segment> seg : weightedSegs) {
               seg.setWeight(seg.getItem().getKeyWeight(filterKey));
-              //seg.setWeightDep(seg.getItem().getKeyWeightDep(filterKey));
             }
+            randomProcess(weightedSegs, filterKey, sampleSize);
           }
-          this.randomProcess(weightedSegs, sampleSegmentsList, filterKey, ratio);
-        }
-      } else {
-        long sampleSize = conf.getLong("map.input.sample.size", 100000);
-        for (String filterKey : filterKeys) {
-          for (WeightedItem<Segment> seg : weightedSegs) {
-            seg.setWeight(seg.getItem().getKeyWeight(filterKey));
-          }
-          this.randomProcess(weightedSegs, sampleSegmentsList, filterKey, sampleSize);
-        }
+        });
       }
     } else {
-      long sampleSize = 0;
-      if (conf.getBoolean("map.input.sample.pilot", false)) {
-        sampleSize = conf.getLong("map.input.sample.size", 100000);
-        for (String filterKey : filterKeys) {
+      final boolean pilot = conf.getBoolean("map.input.sample.pilot", false);
+      this.planGroups(weightedSegs, filterKeys.size(), new GroupPlan() {
+        void plan(List<WeightedItem<Segment>> weightedSegs, int g) {
+          String filterKey = filterKeys.get(g);
           for (WeightedItem<Segment> seg : weightedSegs) {
             seg.setWeight(seg.getItem().getKeyWeight(filterKey));
           }
-          this.randomProcess(weightedSegs, sampleSegmentsList, filterKey, sampleSize);
+          long sampleSize = 0;
+          if (pilot) {
+            sampleSize = conf.getLong("map.input.sample.size", 100000);
+          } else {
+            sampleSize = conf.getLong("map.input.sample.size." + filterKey, 0);
+            LOG.info(filterKey + ":" + String.valueOf(sampleSize));
+          }
+          randomProcess(weightedSegs, filterKey, sampleSize);
         }
+      });
+    }
+
+    List<Segment> sampleSegmentsList = new ArrayList<Segment>();
+    for (Segment seg : keysSegments) {
+      if (seg.isSelected()) {
+        sampleSegmentsList.add(seg);
+      }
+    }
+    return sampleSegmentsList.toArray(new Segment[sampleSegmentsList.size()]);
+  }
+
+
+  /**
+   * Merge runs of adjacent matching segments of the same block into super-segments of
+   * about targetBytes each, the sampling units of the query. Only a dense subset has
+   * such runs, a sparse one keeps the index segments.
+   * @param segments matching segments in offset order
+   */
+  private Segment[] coarsen(Segment[] segments, long targetBytes) {
+    List<Segment> units = new ArrayList<Segment>();
+    Segment current = null;
+    for (Segment seg : segments) {
+      if (current != null && current.getLength() < targetBytes && seg.getBlock() == current.getBlock()
+          && seg.getOffset() == current.getOffset() + current.getLength()) {
+        current.append(seg);
+      } else {
+        current = seg;
+        units.add(current);
+      }
+    }
+    LOG.info("super-segments:" + String.valueOf(units.size()) + " of " + String.valueOf(segments.length));
+    return units.toArray(new Segment[units.size()]);
+  }
+
+  /**
+   * One Poisson sample for all the groups. Every group works out the pi_g of its own
+   * plan, each segment is drawn once with pi = max_g(pi_g), and a drawn segment is sent
+   * to every group it matches with that pi, so each group keeps an unbiased
+   * Horvitz-Thompson estimate while reading only the segments of the largest plan
+   * that needs them. Strata are not used here.
+   */
+  private void sharedProcess(List<WeightedItem<Segment>> weightedSegs, List<String> filterKeys) {
+    boolean error = conf.getBoolean("map.input.sampling.error", false);
+    boolean ratio = conf.getBoolean("map.input.sampling.ratio", false);
+    boolean segunit = conf.getBoolean("map.input.sampling.segunit", false);
+    double[] shared = new double[weightedSegs.size()];
+    for (String filterKey : filterKeys) {
+      long total = 0;
+      for (WeightedItem<Segment> seg : weightedSegs) {
+        seg.setWeight(seg.getItem().getKeyWeight(filterKey));
+        total += seg.getWeight();
+      }
+      double target = 0;
+      int cost = COST_RECORDS;
+      if (getGroupByteBudget(filterKey) > 0) {
+        target = getGroupByteBudget(filterKey);
+        cost = COST_BYTES;
+      } else if (error) {
+        target = conf.getBoolean("map.input.sample.pilot", false) ? conf.getLong("map.input.sample.size", 100000)
+          : conf.getLong("map.input.sample.size." + filterKey, 0);
+      } else if (ratio) {
+        double value = Double.parseDouble(conf.get("map.input.sample.ratio.value", "0.01"));
+        target = segunit ? value : value * total;
+        cost = segunit ? COST_SEGMENTS : COST_RECORDS;
       } else {
+        target = conf.getLong("map.input.sample.size", 100000);
+      }
+      double[] pis = getInclusionProbabilities(weightedSegs, target, cost);
+      for (int i = 0; i < shared.length; i++) {
+        shared[i] = Math.max(shared[i], pis[i]);
+      }
+    }
+    boolean coordinated = conf.getBoolean("map.input.sampling.coordinated", false);
+    Random rnd = SamplingRandom.get(conf, path, "shared");
+    for (int i = 0; i < shared.length; i++) {
+      if (shared[i] <= 0) {
+        continue;
+      }
+      Segment seg = weightedSegs.get(i).getItem();
+      double u = coordinated ? SamplingRandom.getPermanent(conf, path, seg.getOffset()) : rnd.nextDouble();
+      if (u < shared[i]) {
         for (String filterKey : filterKeys) {
-          for (WeightedItem<Segment> seg : weightedSegs) {
-            seg.setWeight(seg.getItem().getKeyWeight(filterKey));
+          if (seg.getKeyWeight(filterKey) > 0) {
+            this.addToSampleSegmentList(seg, filterKey, shared[i]);
           }
-          sampleSize = conf.getLong("map.input.sample.size." + filterKey, 0);
-          LOG.info(filterKey + ":" + String.valueOf(sampleSize));
-          this.randomProcess(weightedSegs, sampleSegmentsList, filterKey, sampleSize);
         }
       }
     }
+    LOG.info("shared sample for " + String.valueOf(filterKeys.size()) + " groups");
+  }
 
-    Collections.sort(sampleSegmentsList);
-    return sampleSegmentsList.toArray(new Segment[sampleSegmentsList.size()]);
+  /**
+   * Split one budget of map.input.sample.budget records across the groups, from the
+   * matching records N_g of every group in the index. With the "max" objective
+   * (map.input.sample.budget.objective) every group gets the same relative variance,
+   * 1/n_g - 1/N_g = lambda, so n_g = N_g/(1+lambda*N_g); with "avg" the sum of the
+   * relative variances is minimized, every group gets the same n_g capped at N_g.
+   * A group whose share reaches map.input.sample.budget.whole of it is read whole and the
+   * budget left is split again among the others, so the plan stays within the budget.
+   */
+  private void budgetProcess(List<WeightedItem<Segment>> weightedSegs, final List<String> filterKeys) {
+    double budget = Double.parseDouble(conf.get("map.input.sample.budget"));
+    boolean max = conf.get("map.input.sample.budget.objective", "max").equals("max");
+    double whole = Double.parseDouble(conf.get("map.input.sample.budget.whole", "0.5"));
+    int numGroups = filterKeys.size();
+    double[] sizes = new double[numGroups];
+    for (int g = 0; g < numGroups; g++) {
+      for (WeightedItem<Segment> seg : weightedSegs) {
+        sizes[g] += seg.getItem().getKeyWeight(filterKeys.get(g));
+      }
+    }
+    boolean[] isWhole = new boolean[numGroups];
+    double[] sampleSizes = new double[numGroups];
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      double remaining = budget;
+      double[] open = new double[numGroups];
+      for (int g = 0; g < numGroups; g++) {
+        if (isWhole[g]) {
+          remaining -= sizes[g];
+        } else {
+          open[g] = sizes[g];
+        }
+      }
+      sampleSizes = allocateBudget(Math.max(0, remaining), open, max);
+      for (int g = 0; g < numGroups; g++) {
+        if (!isWhole[g] && sizes[g] > 0 && sampleSizes[g] >= whole * sizes[g]
+            && remaining - sizes[g] >= 0) {
+          // the groups read whole in this pass share what is left of the budget
+          isWhole[g] = true;
+          remaining -= sizes[g];
+          changed = true;
+        }
+      }
+    }
+    final boolean[] wholeGroups = isWhole;
+    final double[] groupSizes = sizes;
+    final double[] groupSampleSizes = sampleSizes;
+    this.planGroups(weightedSegs, numGroups, new GroupPlan() {
+      void plan(List<WeightedItem<Segment>> weightedSegs, int g) {
+        String filterKey = filterKeys.get(g);
+        for (WeightedItem<Segment> seg : weightedSegs) {
+          seg.setWeight(seg.getItem().getKeyWeight(filterKey));
+        }
+        LOG.info(filterKey + ":" + String.valueOf(wholeGroups[g] ? groupSizes[g] : groupSampleSizes[g]));
+        if (wholeGroups[g]) {
+          wholeProcess(weightedSegs, filterKey);
+        } else if (groupSampleSizes[g] >= 1) {
+          randomProcess(weightedSegs, filterKey, (long)Math.ceil(groupSampleSizes[g]));
+        }
+      }
+    });
   }
 
+  /**
+   * The weights and the draws of one group of the plan.
+   */
+  private abstract class GroupPlan {
+    abstract void plan(List<WeightedItem<Segment>> weightedSegs, int g);
+  }
+
+  private static class Draw {
+    final Segment segment;
+    final String key;
+    final double weight;
+
+    Draw(Segment segment, String key, double weight) {
+      this.segment = segment;
+      this.key = key;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Plan every group. The groups only share the segments, read only while drawing, and
+   * draw from their own random streams, so with map.input.sampling.threads above 1 (off by
+   * default, the plan runs in the job client) they run on a fork-join pool, each on its
+   * own copy of the weighted segments with its draws held back in {@link #pending}. The
+   * draws are then recorded in group order, which keeps the plan the same as a sequential
+   * one.
+   */
+  private void planGroups(final List<WeightedItem<Segment>> weightedSegs, int numGroups, final GroupPlan plan) {
+    int threads = conf.getInt("map.input.sampling.threads", 1);
+    if (threads <= 1 || numGroups <= 1) {
+      for (int g = 0; g < numGroups; g++) {
+        plan.plan(weightedSegs, g);
+      }
+      return;
+    }
+    ForkJoinPool pool = new ForkJoinPool(Math.min(threads, numGroups));
+    List<Future<List<Draw>>> results = new ArrayList<Future<List<Draw>>>(numGroups);
+    try {
+      for (int g = 0; g < numGroups; g++) {
+        final int group = g;
+        results.add(pool.submit(new Callable<List<Draw>>() {
+          public List<Draw> call() {
+            List<WeightedItem<Segment>> own = new ArrayList<WeightedItem<Segment>>(weightedSegs.size());
+            for (WeightedItem<Segment> seg : weightedSegs) {
+              own.add(new WeightedItem<Segment>(seg.getWeight(), seg.getItem()));
+            }
+            List<Draw> draws = new ArrayList<Draw>();
+            pending.set(draws);
+            try {
+              plan.plan(own, group);
+            } finally {
+              pending.remove();
+            }
+            return draws;
+          }
+        }));
+      }
+      for (Future<List<Draw>> result : results) {
+        for (Draw draw : result.get()) {
+          this.addToSampleSegmentList(draw.segment, draw.key, draw.weight);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Split the byte budget across the groups like budgetProcess splits a record budget, over
+   * the bytes of the segments each group matches (either key of a ratio), with the objective
+   * of map.input.sample.budget.objective: no group gets more bytes than it matches and what
+   * a small group cannot use goes to the larger ones. Every group then meets its share in
+   * expectation, so the plan meets the whole budget in expectation.
+   */
+  private void allocateByteBudget(Segment[] segments, List<String> filterKeys) {
+    byteBudgets.clear();
+    double budget = getByteBudget(conf);
+    if (budget <= 0) {
+      return;
+    }
+    boolean max = conf.get("map.input.sample.budget.objective", "max").equals("max");
+    boolean ratio = conf.get("mapred.sampling.app", "total").equals("ratio");
+    double[] bytes = new double[filterKeys.size()];
+    for (int g = 0; g < bytes.length; g++) {
+      String[] keys = ratio ? filterKeys.get(g).split(Pattern.quote("+*+")) : new String[] {filterKeys.get(g)};
+      for (Segment seg : segments) {
+        for (String key : keys) {
+          if (seg.getKeyWeight(key) > 0) {
+            bytes[g] += seg.getLength();
+            break;
+          }
+        }
+      }
+    }
+    double[] shares = allocateBudget(budget, bytes, max);
+    for (int g = 0; g < bytes.length; g++) {
+      byteBudgets.put(filterKeys.get(g), shares[g]);
+    }
+  }
+
+  /**
+   * Bytes the group of key may read in expectation, 0 without a byte budget.
+   */
+  private double getGroupByteBudget(String key) {
+    Double bytes = byteBudgets.get(key);
+    return bytes == null ? 0 : bytes.doubleValue();
+  }
+
+  /**
+   * n_g for every group of size N_g, 0 for groups of size 0, summing to the budget.
+   */
+  private static double[] allocateBudget(double budget, double[] sizes, boolean max) {
+    double[] sampleSizes = new double[sizes.length];
+    double total = 0, largest = 0;
+    for (double size : sizes) {
+      total += size;
+      largest = Math.max(largest, size);
+    }
+    if (budget >= total) {
+      return sizes.clone();
+    }
+    // both shares shrink as the parameter grows for max, and grow for avg
+    double lo = 0, hi = max ? 1 : largest;
+    if (max) {
+      while (sumShares(sizes, hi, max) > budget) {
+        hi *= 2;
+      }
+    }
+    for (int iter = 0; iter < 100; iter++) {
+      double mid = (lo + hi) / 2;
+      boolean tooMany = sumShares(sizes, mid, max) > budget;
+      if (tooMany == max) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+    double param = max ? hi : lo;
+    for (int g = 0; g < sizes.length; g++) {
+      sampleSizes[g] = share(sizes[g], param, max);
+    }
+    return sampleSizes;
+  }
+
+  private static double share(double size, double param, boolean max) {
+    return max ? size / (1 + param * size) : Math.min(size, param);
+  }
+
+  private static double sumShares(double[] sizes, double param, boolean max) {
+    double sum = 0;
+    for (double size : sizes) {
+      sum += share(size, param, max);
+    }
+    return sum;
+  }
+
+  /**
+   * Read every matching segment of the key once; the estimate is then exact.
+   */
+  private void wholeProcess(List<WeightedItem<Segment>> weightedSegs, String key) {
+    int numsegs = 0;
+    for (WeightedItem<Segment> seg : weightedSegs) {
+      if (seg.getWeight() > 0) {
+        numsegs++;
+      }
+    }
+    for (WeightedItem<Segment> seg : weightedSegs) {
+      if (seg.getWeight() > 0) {
+        this.addToSampleSegmentList(seg.getItem(), key, isPoisson(conf) ? 1.0 : 1.0 / numsegs);
+      }
+    }
+  }
 
   private void randomProcess(List<WeightedItem<Segment>> weightedSegs,
-                             List<Segment> sampleSegmentsList, String key, long sampleSize) {
+                             String key, long sampleSize) {
 
     if (conf.getBoolean("map.input.sample.whole", false)) {
       int numsegs = weightedSegs.size();
       for (int i = 0; i < numsegs; i++) {
         WeightedItem<Segment> candidate = weightedSegs.get(i);
-        this.addToSampleSegmentList(candidate.getItem(), sampleSegmentsList, key, 1.0 / numsegs);
+        // every segment is read, with inclusion probability 1 in a Poisson plan
+        this.addToSampleSegmentList(candidate.getItem(), key, isPoisson(conf) ? 1.0 : 1.0 / numsegs);
+      }
+      return;
+    }
+    // Poisson plans give their own inclusion probabilities, the equal draws below are with replacement
+    if (isPoisson(conf)) {
+      if (getGroupByteBudget(key) > 0) {
+        this.poissonProcess(weightedSegs, key, getGroupByteBudget(key), COST_BYTES);
+      } else {
+        this.poissonProcess(weightedSegs, key, sampleSize, COST_RECORDS);
       }
       return;
     }
     if (conf.getBoolean("map.input.sampling.equal", false)) {
       int numsegs = weightedSegs.size();
-      Random rnd = new Random();
-      for (int i = 0; i < sampleSize + 1;) {
+      Random rnd = SamplingRandom.get(conf, path, key);
+      for (long i = 0; i < sampleSize + 1;) {
         int index = rnd.nextInt(numsegs);
         WeightedItem<Segment> candidate = weightedSegs.get(index);
         i += candidate.getWeight();
-        this.addToSampleSegmentList(candidate.getItem(), sampleSegmentsList, key, 1.0 / numsegs);
+        this.addToSampleSegmentList(candidate.getItem(), key, 1.0 / numsegs);
       }
       return;
     }
-    WeightedRandomSelector selector = new WeightedRandomSelector(weightedSegs);
-    for (int i = 0; i < sampleSize + 1;) {
+    double[] remaining = {sampleSize + 1};
+    if (getCertaintyThreshold(conf) > 0) {
+      weightedSegs = this.certaintyProcess(weightedSegs, key, remaining, false);
+      if (weightedSegs.isEmpty() || remaining[0] <= 0) {
+        return;
+      }
+    }
+    if (conf.getBoolean("map.input.sampling.systematic", false)) {
+      this.systematicProcess(weightedSegs, key, getNumDraws(weightedSegs, remaining[0]));
+      return;
+    }
+    WeightedRandomSelector selector = new WeightedRandomSelector(weightedSegs, SamplingRandom.get(conf, path, key));
+    for (long i = 0; i < remaining[0];) {
       WeightedItem<Segment> candidate = selector.select();
       double weight = (double)(candidate.getWeight()) / selector.getRangeSize();
       i += candidate.getWeight();
       //LOG.info("segsize:" + String.valueOf(candidate.getWeight()));
-      this.addToSampleSegmentList(candidate.getItem(), sampleSegmentsList, key, weight);
+      this.addToSampleSegmentList(candidate.getItem(), key, weight);
     }
 
   }
 
   private void randomProcess(List<WeightedItem<Segment>> weightedSegs,
-                             List<Segment> sampleSegmentsList, String key, double ratio) {
+                             String key, double ratio) {
 
     if (conf.getBoolean("map.input.sample.whole", false)) {
       int numsegs = weightedSegs.size();
       for (int i = 0; i < numsegs; i++) {
         WeightedItem<Segment> candidate = weightedSegs.get(i);
-        this.addToSampleSegmentList(candidate.getItem(), sampleSegmentsList, key, 1.0 / numsegs);
+        this.addToSampleSegmentList(candidate.getItem(), key, isPoisson(conf) ? 1.0 : 1.0 / numsegs);
+      }
+      return;
+    }
+    if (isPoisson(conf)) {
+      if (getGroupByteBudget(key) > 0) {
+        this.poissonProcess(weightedSegs, key, getGroupByteBudget(key), COST_BYTES);
+      } else if (conf.getBoolean("map.input.sampling.segunit", false)) {
+        this.poissonProcess(weightedSegs, key, ratio, COST_SEGMENTS);
+      } else {
+        long total = 0;
+        for (WeightedItem<Segment> seg : weightedSegs) {
+          total += seg.getWeight();
+        }
+        this.poissonProcess(weightedSegs, key, ratio * total, COST_RECORDS);
       }
       return;
     }
-
 
     if (conf.getBoolean("map.input.sampling.equal", false)) {
       int numsegs = 0;
@@ -291,24 +779,60 @@ public class SegmentsMap {
       }
       LOG.info("numsegs:" + String.valueOf(numsegs));
       int total = weightedSegs.size();
-      Random rnd = new Random();
+      Random rnd = SamplingRandom.get(conf, path, key);
       for (int i = 0; i < numsegs; i++) {
         int index = rnd.nextInt(total);
         WeightedItem<Segment> candidate = weightedSegs.get(index);
-        this.addToSampleSegmentList(candidate.getItem(), sampleSegmentsList, key, 1.0 / total);
+        this.addToSampleSegmentList(candidate.getItem(), key, 1.0 / total);
       }
       return;
     }
-    WeightedRandomSelector selector = new WeightedRandomSelector(weightedSegs);
+    if (getCertaintyThreshold(conf) > 0) {
+      boolean segunit = conf.getBoolean("map.input.sampling.segunit", false);
+      long total = 0;
+      for (WeightedItem<Segment> seg : weightedSegs) {
+        total += seg.getWeight();
+      }
+      double[] remaining = {segunit ? ratio : ratio * total};
+      weightedSegs = this.certaintyProcess(weightedSegs, key, remaining, segunit);
+      if (weightedSegs.isEmpty() || remaining[0] <= 0) {
+        return;
+      }
+      if (segunit) {
+        ratio = Math.ceil(remaining[0]);
+      } else {
+        long rest = 0;
+        for (WeightedItem<Segment> seg : weightedSegs) {
+          rest += seg.getWeight();
+        }
+        ratio = remaining[0] / rest;
+      }
+    }
+    if (conf.getBoolean("map.input.sampling.systematic", false)) {
+      long numDraws = 0;
+      if (conf.getBoolean("map.input.sampling.segunit", false)) {
+        numDraws = (long)ratio;
+      } else {
+        long total = 0;
+        for (WeightedItem<Segment> seg : weightedSegs) {
+          total += seg.getWeight();
+        }
+        // the draws stop once their probabilities w/W add up to ratio
+        numDraws = getNumDraws(weightedSegs, ratio * total);
+      }
+      this.systematicProcess(weightedSegs, key, numDraws);
+      return;
+    }
+    WeightedRandomSelector selector = new WeightedRandomSelector(weightedSegs, SamplingRandom.get(conf, path, key));
     if (conf.getBoolean("map.input.sampling.segunit", false)) {
       int numsegs = (int)ratio;
       LOG.info("numsegs:" + String.valueOf(numsegs));
       int total = weightedSegs.size();
-      Random rnd = new Random();
+      Random rnd = SamplingRandom.get(conf, path, key);
       for (int i = 0; i < numsegs; i++) {
         WeightedItem<Segment> candidate = selector.select();
         double weight = (double)(candidate.getWeight()) / selector.getRangeSize();
-        this.addToSampleSegmentList(candidate.getItem(), sampleSegmentsList, key, weight);
+        this.addToSampleSegmentList(candidate.getItem(), key, weight);
       }
       return;
     }
@@ -318,21 +842,511 @@ public class SegmentsMap {
       WeightedItem<Segment> candidate = selector.select();
       double weight = (double)(candidate.getWeight()) / selector.getRangeSize();
       i += weight;
-      this.addToSampleSegmentList(candidate.getItem(), sampleSegmentsList, key, weight);
+      this.addToSampleSegmentList(candidate.getItem(), key, weight);
       //double weightDep = (double)(candidate.getWeightDep())/ selector.getRangeSizeDep();
       //LOG.info("in,"+String.valueOf(weight)+",dep,"+ String.valueOf(weightDep));
     }
 
   }
 
-  private void addToSampleSegmentList(Segment candidate, List<Segment> sampleSegmentsList, String key, double weight) {
+  /**
+   * Take-all stratum of a with replacement plan. A segment expected to be drawn at least
+   * map.input.sampling.certainty times (at most 1) is read once with weight {@link #CERTAIN},
+   * which the reducers add up exactly, and is left out of the draws; this repeats until no
+   * segment of the rest qualifies. remaining holds the draws (segunit) or the records
+   * still to sample and is reduced by the taken segments.
+   * @return the segments left to draw from
+   */
+  private List<WeightedItem<Segment>> certaintyProcess(List<WeightedItem<Segment>> weightedSegs,
+                                                      String key, double[] remaining, boolean segunit) {
+    double threshold = getCertaintyThreshold(conf);
+    List<WeightedItem<Segment>> rest = weightedSegs;
+    boolean changed = true;
+    while (changed && !rest.isEmpty() && remaining[0] > 0) {
+      changed = false;
+      double total = 0, squares = 0;
+      for (WeightedItem<Segment> seg : rest) {
+        total += seg.getWeight();
+        squares += (double)seg.getWeight() * seg.getWeight();
+      }
+      if (total == 0) {
+        break;
+      }
+      // expected draws: draws of w/W each add w records, W^2/sum(w^2) draws per W records
+      double numDraws = segunit ? remaining[0] : remaining[0] * total / squares;
+      List<WeightedItem<Segment>> next = new ArrayList<WeightedItem<Segment>>();
+      double taken = 0;
+      for (WeightedItem<Segment> seg : rest) {
+        if (seg.getWeight() > 0 && numDraws * seg.getWeight() / total >= threshold) {
+          this.addToSampleSegmentList(seg.getItem(), key, CERTAIN);
+          taken += segunit ? 1 : seg.getWeight();
+          changed = true;
+        } else {
+          next.add(seg);
+        }
+      }
+      remaining[0] -= taken;
+      rest = next;
+    }
+    return rest;
+  }
+
+  /**
+   * Weight of a segment of the take-all stratum. Draw probabilities are positive, so it
+   * cannot be confused with a draw of probability 1.0, e.g. of the last segment left.
+   */
+  public static final double CERTAIN = -1.0;
+
+  /**
+   * Expected draws from which a segment is taken for certain, map.input.sampling.certainty,
+   * capped at 1; 0 disables the take-all stratum.
+   */
+  public static double getCertaintyThreshold(Configuration conf) {
+    return Math.min(1.0, Double.parseDouble(conf.get("map.input.sampling.certainty", "0")));
+  }
+
+  /**
+   * True if segments are sampled without replacement, each at most once with its own
+   * inclusion probability, which is then the weight sent to the reducers.
+   */
+  public static boolean isPoisson(Configuration conf) {
+    return conf.getBoolean("map.input.sampling.poisson", false)
+      || conf.getBoolean("map.input.sampling.coordinated", false)
+      || conf.getBoolean("map.input.sampling.shared", false)
+      || conf.get("map.input.sampling.measure") != null
+      || conf.getBoolean("map.input.sampling.locality", false)
+      || conf.get("map.input.sampling.strata") != null
+      || getByteBudget(conf) > 0;
+  }
+
+  /**
+   * Bytes the plan may read: map.input.sample.bytes, or map.input.sample.seconds times
+   * map.input.sample.bytes.per.second; 0 without a byte budget.
+   */
+  public static double getByteBudget(Configuration conf) {
+    long bytes = conf.getLong("map.input.sample.bytes", 0);
+    if (bytes > 0) {
+      return bytes;
+    }
+    double seconds = Double.parseDouble(conf.get("map.input.sample.seconds", "0"));
+    return seconds * conf.getLong("map.input.sample.bytes.per.second", 100L * 1024 * 1024);
+  }
+
+  /**
+   * Put every candidate segment in a stratum: "offset" cuts the segments in offset order
+   * into map.input.sampling.strata.count ranges, "block" uses the HDFS block, and any
+   * other value names an index field whose most frequent keyword in the segment is its stratum.
+   */
+  private void assignStrata(Segment[] segments, String strata) {
+    if (strata.equals("offset")) {
+      int count = conf.getInt("map.input.sampling.strata.count", 10);
+      for (int i = 0; i < segments.length; i++) {
+        segments[i].setStratum(String.valueOf((long)i * count / segments.length));
+      }
+      return;
+    }
+    if (strata.equals("block")) {
+      for (Segment seg : segments) {
+        seg.setStratum(String.valueOf(seg.getBlock()));
+      }
+      return;
+    }
+    try {
+      Hashtable<String, Segment> segTable = new Hashtable<String, Segment>();
+      for (Segment seg : segments) {
+        segTable.put(String.valueOf(seg.getOffset()), seg);
+      }
+      Hashtable<String, Long> best = new Hashtable<String, Long>();
+      Path path = new Path(FILE_PARENT + "/" + conf.get("map.input.table.name", "") + "/" + strata);
+      BufferedReader bufferedReader = this.openIndex(FileSystem.get(conf), path, null);
+      String line = bufferedReader.readLine();
+      while (line != null) {
+        String[] meta = line.split(Pattern.quote(","));
+        Segment seg = segTable.get(meta[1]);
+        long frequency = Long.parseLong(meta[4]);
+        if (seg != null && (!best.containsKey(meta[1]) || best.get(meta[1]) < frequency)) {
+          best.put(meta[1], frequency);
+          seg.setStratum(meta[0]);
+        }
+        line = bufferedReader.readLine();
+      }
+      bufferedReader.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Read the measure of every candidate segment from the magnitude buckets of the index
+   * field named by map.input.sampling.measure (see {@link IndexMapper#getMagnitudeBucket}):
+   * the sum of the bucket frequencies times their midpoints.
+   */
+  private void loadMagnitudes(Segment[] segments, String field) {
+    try {
+      Hashtable<String, Segment> segTable = new Hashtable<String, Segment>();
+      for (Segment seg : segments) {
+        segTable.put(String.valueOf(seg.getOffset()), seg);
+      }
+      Path path = new Path(FILE_PARENT + "/" + conf.get("map.input.table.name", "") + "/" + field);
+      BufferedReader bufferedReader = this.openIndex(FileSystem.get(conf), path, null);
+      String line = bufferedReader.readLine();
+      while (line != null) {
+        String[] meta = line.split(Pattern.quote(","));
+        Segment seg = segTable.get(meta[1]);
+        if (seg != null) {
+          seg.addMeasure(Long.parseLong(meta[4]) * IndexMapper.getBucketMidpoint(meta[0]));
+        }
+        line = bufferedReader.readLine();
+      }
+      bufferedReader.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Poisson PPS: every segment is taken at most once, independently, with inclusion
+   * probability pi = min(1, c*w). c is set so the expected sample, the sum of pi*w
+   * (or of pi when counting segments), is the target.
+   * With a byte budget pi = min(1, c*w/sqrt(length)) and the expected bytes read,
+   * the sum of pi*length, is the target: of all plans within the budget that one
+   * minimizes the variance sum(t^2/pi) when t is proportional to w.
+   * With map.input.sampling.measure w is scaled by the mean measure of the segment in
+   * pi (not in the cost), so a SUM over a heavy tailed measure reads the segments that
+   * hold its large values.
+   * With strata the target is first split across them with Neyman allocation,
+   * proportional to N_h*S_h, the number of segments times the standard deviation of
+   * their weights, and every stratum gets its own c. The Horvitz-Thompson sum over all
+   * sampled segments is then the sum of the stratum estimates.
+   * With map.input.sampling.coordinated a segment is taken when its permanent random
+   * number is below pi, so queries over overlapping subsets read overlapping segments
+   * and find them cached, while each query alone is still a Poisson sample.
+   */
+  private void poissonProcess(List<WeightedItem<Segment>> weightedSegs, String key, double target, int cost) {
+    if (conf.get("map.input.sampling.strata") == null) {
+      this.poissonDraw(weightedSegs, key, target, cost, SamplingRandom.get(conf, path, key));
+      return;
+    }
+    Map<String, List<WeightedItem<Segment>>> strata = new LinkedHashMap<String, List<WeightedItem<Segment>>>();
+    for (WeightedItem<Segment> seg : weightedSegs) {
+      if (seg.getWeight() <= 0) {
+        continue;
+      }
+      List<WeightedItem<Segment>> stratum = strata.get(seg.getItem().getStratum());
+      if (stratum == null) {
+        stratum = new ArrayList<WeightedItem<Segment>>();
+        strata.put(seg.getItem().getStratum(), stratum);
+      }
+      stratum.add(seg);
+    }
+    String[] names = strata.keySet().toArray(new String[strata.size()]);
+    double[] allocation = new double[names.length];
+    double[] capacity = new double[names.length];
+    double sumAllocation = 0;
+    for (int h = 0; h < names.length; h++) {
+      List<WeightedItem<Segment>> stratum = strata.get(names[h]);
+      double sum = 0, squares = 0;
+      for (WeightedItem<Segment> seg : stratum) {
+        sum += seg.getWeight();
+        squares += (double)seg.getWeight() * seg.getWeight();
+        capacity[h] += getCost(seg, cost);
+      }
+      int n = stratum.size();
+      double mean = sum / n;
+      double std = Math.sqrt(Math.max(0, squares / n - mean * mean));
+      allocation[h] = n * std;
+      sumAllocation += allocation[h];
+    }
+    if (sumAllocation == 0) {
+      // equal weights everywhere: proportional allocation
+      allocation = capacity.clone();
+    }
+    double[] targets = allocate(target, allocation, capacity);
+    for (int h = 0; h < names.length; h++) {
+      LOG.info("stratum " + names[h] + ":" + String.valueOf(targets[h]));
+      this.poissonDraw(strata.get(names[h]), key, targets[h], cost, SamplingRandom.get(conf, path, key + "/" + names[h]));
+    }
+  }
+
+  /**
+   * Split the target proportionally to the allocation; a share above the capacity of its
+   * stratum is capped and the rest is split again among the others.
+   */
+  private static double[] allocate(double target, double[] allocation, double[] capacity) {
+    double[] targets = new double[allocation.length];
+    boolean[] capped = new boolean[allocation.length];
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      double remaining = target, sum = 0;
+      for (int h = 0; h < allocation.length; h++) {
+        if (capped[h]) {
+          remaining -= capacity[h];
+        } else {
+          sum += allocation[h];
+        }
+      }
+      for (int h = 0; h < allocation.length; h++) {
+        if (capped[h]) {
+          targets[h] = capacity[h];
+          continue;
+        }
+        targets[h] = sum > 0 ? Math.max(0, remaining) * allocation[h] / sum : 0;
+        if (targets[h] >= capacity[h]) {
+          capped[h] = true;
+          changed = true;
+        }
+      }
+    }
+    return targets;
+  }
+
+  private void poissonDraw(List<WeightedItem<Segment>> weightedSegs, String key, double target, int cost, Random rnd) {
+    double[] pis = getInclusionProbabilities(weightedSegs, target, cost);
+    boolean coordinated = conf.getBoolean("map.input.sampling.coordinated", false);
+    if (!coordinated && locations != null && conf.getBoolean("map.input.sampling.locality", false)) {
+      this.localityDraw(weightedSegs, key, pis, rnd);
+      return;
+    }
+    for (int i = 0; i < pis.length; i++) {
+      if (pis[i] <= 0) {
+        continue;
+      }
+      // a segment's permanent number takes it in every query where pi exceeds it
+      double u = coordinated ? SamplingRandom.getPermanent(conf, path, weightedSegs.get(i).getItem().getOffset()) : rnd.nextDouble();
+      if (u < pis[i]) {
+        this.addToSampleSegmentList(weightedSegs.get(i).getItem(), key, pis[i]);
+      }
+    }
+  }
+
+  /**
+   * The pi of every segment in a Poisson plan of the target, 0 for segments of weight 0.
+   */
+  private static double[] getInclusionProbabilities(List<WeightedItem<Segment>> weightedSegs, double target, int cost) {
+    double[] scores = new double[weightedSegs.size()];
+    double[] costs = new double[weightedSegs.size()];
+    for (int i = 0; i < scores.length; i++) {
+      WeightedItem<Segment> seg = weightedSegs.get(i);
+      if (seg.getWeight() > 0) {
+        scores[i] = getScore(seg, cost);
+        costs[i] = getCost(seg, cost);
+      }
+    }
+    double c = getInclusionScale(scores, costs, target);
+    double[] pis = new double[scores.length];
+    double threshold = getCertaintyThreshold(conf);
+    for (int i = 0; i < scores.length; i++) {
+      pis[i] = scores[i] > 0 ? Math.min(1.0, c * scores[i]) : 0;
+      // dominant segments are read for certain
+      if (threshold > 0 && pis[i] >= threshold) {
+        pis[i] = 1.0;
+      }
+    }
+    return pis;
+  }
+
+  /**
+   * Locality aware draw with the same inclusion probabilities as {@link #poissonDraw}.
+   * Every segment is charged to the replica node of its block with the least expected
+   * work so far, heaviest first, and the segments are swept node by node with one
+   * systematic draw over the cumulative pi. Each segment is still taken with
+   * probability pi, recorded for the Horvitz-Thompson estimate, while every node gets
+   * the floor or ceil of its expected share and the map tasks stay data local and even.
+   */
+  private void localityDraw(List<WeightedItem<Segment>> weightedSegs, String key, double[] pis, Random rnd) {
+    Integer[] heaviest = new Integer[pis.length];
+    for (int i = 0; i < pis.length; i++) {
+      heaviest[i] = i;
+    }
+    final double[] work = pis;
+    Arrays.sort(heaviest, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Double.compare(work[b], work[a]);
+      }
+    });
+    HashMap<String, Double> load = new HashMap<String, Double>();
+    TreeMap<String, List<Integer>> byNode = new TreeMap<String, List<Integer>>();
+    for (int i : heaviest) {
+      if (pis[i] <= 0) {
+        break;
+      }
+      String node = "";
+      double least = Double.MAX_VALUE;
+      for (String host : this.getHosts(weightedSegs.get(i).getItem())) {
+        double l = load.containsKey(host) ? load.get(host) : 0;
+        if (l < least) {
+          least = l;
+          node = host;
+        }
+      }
+      load.put(node, least == Double.MAX_VALUE ? pis[i] : least + pis[i]);
+      if (!byNode.containsKey(node)) {
+        byNode.put(node, new ArrayList<Integer>());
+      }
+      byNode.get(node).add(i);
+    }
+    double start = rnd.nextDouble();
+    double cumulative = 0;
+    for (List<Integer> segs : byNode.values()) {
+      Collections.sort(segs);
+      for (int i : segs) {
+        double from = cumulative;
+        cumulative += pis[i];
+        if (Math.floor(cumulative - start) > Math.floor(from - start)) {
+          this.addToSampleSegmentList(weightedSegs.get(i).getItem(), key, pis[i]);
+        }
+      }
+    }
+  }
+
+  private String[] getHosts(Segment seg) {
+    int block = (int)seg.getBlock();
+    if (block < 0 || block >= locations.length) {
+      // older indexes do not name the block, find it by offset
+      int lo = 0, hi = locations.length - 1;
+      while (lo < hi) {
+        int mid = (lo + hi + 1) / 2;
+        if (locations[mid].getOffset() <= seg.getOffset()) {
+          lo = mid;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      block = Math.max(0, lo);
+    }
+    try {
+      return locations.length == 0 ? new String[0] : locations[block].getHosts();
+    } catch (IOException e) {
+      return new String[0];
+    }
+  }
+
+  private static double getScore(WeightedItem<Segment> seg, int cost) {
+    double contribution = seg.getWeight() * seg.getItem().getMagnitude();
+    if (cost == COST_BYTES) {
+      return contribution / Math.sqrt(Math.max(1, seg.getItem().getLength()));
+    }
+    return contribution;
+  }
+
+  private static double getCost(WeightedItem<Segment> seg, int cost) {
+    if (cost == COST_SEGMENTS) {
+      return 1;
+    } else if (cost == COST_BYTES) {
+      return seg.getItem().getLength();
+    }
+    return seg.getWeight();
+  }
+
+  /**
+   * Bisection for the c of {@link #poissonDraw}; the expected cost of the sample,
+   * sum(min(1, c*score)*cost), grows with c until c*score reaches 1 everywhere.
+   */
+  private static double getInclusionScale(double[] scores, double[] costs, double target) {
+    double total = 0;
+    double minScore = Double.MAX_VALUE;
+    for (int i = 0; i < scores.length; i++) {
+      if (scores[i] > 0) {
+        total += costs[i];
+        minScore = Math.min(minScore, scores[i]);
+      }
+    }
+    if (total == 0 || target >= total) {
+      return Double.POSITIVE_INFINITY;
+    }
+    double lo = 0, hi = 1.0 / minScore;
+    for (int iter = 0; iter < 100; iter++) {
+      double c = (lo + hi) / 2;
+      double expected = 0;
+      for (int i = 0; i < scores.length; i++) {
+        if (scores[i] > 0) {
+          expected += Math.min(1.0, c * scores[i]) * costs[i];
+        }
+      }
+      if (expected < target) {
+        lo = c;
+      } else {
+        hi = c;
+      }
+    }
+    return hi;
+  }
+
+  /**
+   * Record a draw on its segment. On a planGroups worker (map.input.sampling.threads above 1)
+   * the thread has a pending list and the draw is only queued there, since segments are
+   * shared by the groups and their keys and weights must be appended in group order.
+   */
+  private void addToSampleSegmentList(Segment candidate, String key, double weight) {
+    List<Draw> draws = pending.get();
+    if (draws != null) {
+      draws.add(new Draw(candidate, key, weight));
+      return;
+    }
     candidate.addKey(key);
     candidate.addWeight(weight);
-    if (!sampleSegmentsList.contains(candidate)) {
-      sampleSegmentsList.add(candidate);
+    candidate.setSelected(true);
+  }
+
+  /**
+   * Systematic PPS: numDraws draws in one sweep over the cumulative weights of the
+   * segments in offset order, from a random start with a fixed step. A segment of
+   * weight w gets floor or ceil of numDraws*w/W draws, each recorded with the draw
+   * probability w/W as in the one at a time draws.
+   */
+  private void systematicProcess(List<WeightedItem<Segment>> weightedSegs, String key, long numDraws) {
+    long total = 0;
+    for (WeightedItem<Segment> seg : weightedSegs) {
+      total += seg.getWeight();
+    }
+    if (total <= 0 || numDraws <= 0) {
+      return;
+    }
+    double step = (double)total / numDraws;
+    double point = SamplingRandom.get(conf, path, key).nextDouble() * step;
+    double cumulative = 0;
+    for (WeightedItem<Segment> seg : weightedSegs) {
+      if (seg.getWeight() <= 0) {
+        continue;
+      }
+      cumulative += seg.getWeight();
+      double weight = (double)seg.getWeight() / total;
+      while (point < cumulative) {
+        this.addToSampleSegmentList(seg.getItem(), key, weight);
+        point += step;
+      }
     }
   }
 
+  /**
+   * Number of draws that the one at a time loop makes on average before the drawn
+   * weights pass the target: each draw adds sum(w^2)/W in expectation.
+   */
+  private static long getNumDraws(List<WeightedItem<Segment>> weightedSegs, double target) {
+    double total = 0, squares = 0;
+    for (WeightedItem<Segment> seg : weightedSegs) {
+      total += seg.getWeight();
+      squares += (double)seg.getWeight() * seg.getWeight();
+    }
+    if (squares == 0) {
+      return 0;
+    }
+    return (long)Math.ceil(target * total / squares);
+  }
+
+  /**
+   * Open the index of a field. For a range sharded index only the shard holding
+   * the key is read, or all shards in key order if key is null.
+   */
+  private BufferedReader openIndex(FileSystem fs, Path path, String key) throws IOException {
+    List<InputStream> shards = new ArrayList<InputStream>();
+    for (Path shard : IndexShards.getIndexFiles(fs, path, key)) {
+      shards.add(fs.open(shard));
+    }
+    return new BufferedReader(new InputStreamReader(new SequenceInputStream(Collections.enumeration(shards))));
+  }
+
   private Segment[] retrieveKeyHistogram(String[] wherekeys, String groupBy, List filterKeys) {
     //read a file sequentially
     // format: key, offset, length, segsize, frequency
@@ -342,6 +1356,9 @@ public class SegmentsMap {
       Hashtable<String, Segment> segTable = new Hashtable<String, Segment>();
       String tableName = conf.get("map.input.table.name", "");
       String indexfile = this.FILE_PARENT + "/" + tableName + "/";
+      if (FileSystem.get(conf).exists(new Path(indexfile + IndexBootstrap.APPROXIMATE))) {
+        LOG.warn("index of " + tableName + " is approximate until its exact build finishes");
+      }
       String filterKey = "";
       for (String wherekey : wherekeys) {
         String fieldIndex = wherekey.split(Pattern.quote("="))[0];
@@ -349,7 +1366,7 @@ public class SegmentsMap {
         filterKey = key + "+*+" + filterKey;
         FileSystem fs = FileSystem.get(conf);;
         Path newPath = new Path(indexfile + fieldIndex);
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(fs.open(newPath)));
+        BufferedReader bufferedReader = this.openIndex(fs, newPath, key);
         String line = bufferedReader.readLine();
         while (line != null) {
           //System.out.println(line);
@@ -361,6 +1378,9 @@ public class SegmentsMap {
             Segment newSeg = segTable.get(meta[1]);
             if (newSeg == null) {
               newSeg = new Segment(Long.parseLong(meta[1]), Long.parseLong(meta[2]), Long.parseLong(meta[3]));
+              if (meta.length > 5) {
+                newSeg.setBlock(Long.parseLong(meta[5]));
+              }
               //newSeg.addKeyword(meta[0]);
               //newSeg.addFrequency(Long.parseLong(meta[4]));
               newSeg.addHistogramRecord(meta[0], Long.parseLong(meta[4]));
@@ -380,7 +1400,7 @@ public class SegmentsMap {
       if (groupBy != null) {
         FileSystem fs = FileSystem.get(conf);;
         Path newPath = new Path(indexfile + groupBy);
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(fs.open(newPath)));
+        BufferedReader bufferedReader = this.openIndex(fs, newPath, null);
         String line = bufferedReader.readLine();
         String[] meta = line.split(Pattern.quote(","));
         String preKey = meta[0];
@@ -390,6 +1410,9 @@ public class SegmentsMap {
           Segment newSeg = segTable.get(meta[1]);
           if (newSeg == null) {
             newSeg = new Segment(Long.parseLong(meta[1]), Long.parseLong(meta[2]), Long.parseLong(meta[3]));
+            if (meta.length > 5) {
+              newSeg.setBlock(Long.parseLong(meta[5]));
+            }
             //newSeg.addKeyword(meta[0]);
             //newSeg.addFrequency(Long.parseLong(meta[4]));
             newSeg.addHistogramRecord(meta[0], Long.parseLong(meta[4]));
@@ -1,50 +1,96 @@
 package org.apache.hadoop.mapreduce.approx;
 
 import java.util.Random;
-import java.util.TreeMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.lang.Comparable;
 
+/**
+ * Draws items with probability proportional to their weight in O(1), with Vose's
+ * alias method: slot i keeps item i with probability prob[i] and otherwise
+ * gives alias[i]. The tables are built once in O(n) over primitive arrays.
+ */
 public class WeightedRandomSelector<T> {
-    private final Random rnd = new Random();
-    private final TreeMap<Integer, WeightedItem> ranges = new TreeMap<Integer, WeightedItem>();
-    private int rangeSize; // Lowest integer higher than the top of the highest range.
-    private int rangeSizeDep;
+    private final Random rnd;
+    private final WeightedItem<T>[] items;
+    private final double[] prob;
+    private final int[] alias;
+    private long rangeSize; // sum of the weights
+    private long rangeSizeDep;
 
     public WeightedRandomSelector(List<WeightedItem<T>> weightedItems) {
-        int top = 0; // Increments by size of non zero range added as ranges grows.
+        this(weightedItems, new Random());
+    }
+
+    @SuppressWarnings("unchecked")
+    public WeightedRandomSelector(List<WeightedItem<T>> weightedItems, Random rnd) {
+        this.rnd = rnd;
+        int n = 0;
+        long top = 0;
         rangeSizeDep=0;
         for(WeightedItem<T> wi : weightedItems) {
-            int weight = wi.getWeight();
-            if(weight > 0) {
-                top = top + weight;
+            if(wi.getWeight() > 0) {
+                n++;
+                top = top + wi.getWeight();
                 rangeSizeDep+=wi.getWeightDep();
-                //Range<T> r = new Range<T>(bottom, top, wi);
-                //if(ranges.containsKey(wi)) {
-                    //Range<T> other = ranges.get(r);
-                    //throw new IllegalArgumentException(String.format("Range %s conflicts with range %s", wi, other));
-                //}
-                ranges.put(new Integer(top), wi);
-                //bottom = top + 1;
             }
         }
-        rangeSize = top; 
+        rangeSize = top;
+        items = new WeightedItem[n];
+        prob = new double[n];
+        alias = new int[n];
+        int i = 0;
+        for(WeightedItem<T> wi : weightedItems) {
+            if(wi.getWeight() > 0) {
+                items[i] = wi;
+                // scaled so the average slot holds 1
+                prob[i] = (double)wi.getWeight() * n / top;
+                i++;
+            }
+        }
+        // worklists of the slots below and above the average, as stacks
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0, numLarge = 0;
+        for(i = 0; i < n; i++) {
+            if(prob[i] < 1.0) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
+            }
+        }
+        while(numSmall > 0 && numLarge > 0) {
+            int less = small[--numSmall];
+            int more = large[--numLarge];
+            alias[less] = more;
+            prob[more] = (prob[more] + prob[less]) - 1.0;
+            if(prob[more] < 1.0) {
+                small[numSmall++] = more;
+            } else {
+                large[numLarge++] = more;
+            }
+        }
+        // what is left is full up to rounding
+        while(numLarge > 0) {
+            prob[large[--numLarge]] = 1.0;
+        }
+        while(numSmall > 0) {
+            prob[small[--numSmall]] = 1.0;
+        }
     }
 
     public WeightedItem<T> select() {
-        Integer key = new Integer(rnd.nextInt(rangeSize));
-        WeightedItem r = ranges.higherEntry(key).getValue();
-        if(r == null)
-            return null;
-        return r;
+        if(items.length == 0)
+            throw new IllegalStateException("no item with a positive weight to select from");
+        int i = rnd.nextInt(items.length);
+        return rnd.nextDouble() < prob[i] ? items[i] : items[alias[i]];
     }
 
-    public int getRangeSize(){
+    public long getRangeSize(){
         return rangeSize;
     }
 
-    public int getRangeSizeDep(){
+    public long getRangeSizeDep(){
         return rangeSizeDep;
     }
 
@@ -95,10 +141,10 @@ public class WeightedRandomSelector<T> {
     // }
 
     public static class WeightedItem<T>{
-        private int weight;
+        private long weight;
         private T item;
-        private int weightDep;
-        public WeightedItem(int weight, T item) {
+        private long weightDep;
+        public WeightedItem(long weight, T item) {
             this.item = item;
             this.weight = weight;
         }
@@ -107,16 +153,16 @@ public class WeightedRandomSelector<T> {
             return item;
         }
 
-        public int getWeight() {
+        public long getWeight() {
             return weight;
         }
-        public void setWeight(int weight){
+        public void setWeight(long weight){
             this.weight = weight;
         }
-        public int getWeightDep(){
+        public long getWeightDep(){
             return weightDep;
         }
-        public void setWeightDep(int weight){
+        public void setWeightDep(long weight){
             this.weightDep = weight;
         }
 
@@ -39,6 +39,7 @@ import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.approx.ApproximatePartitioner;
 import org.apache.hadoop.mapreduce.approx.ApproximateMapper;
 import org.apache.hadoop.mapreduce.approx.ApproximateReducer;
+import org.apache.hadoop.mapreduce.approx.index.LazyIndex;
 import org.apache.hadoop.mapreduce.approx.lib.input.MySampleTextInputFormat;
 
 import org.apache.log4j.Logger;
@@ -296,11 +297,25 @@ public class AmazonReview {
 		options.addOption("m", "max", true, "max split size");
 		options.addOption("b", "block", false, "block unit");
 		options.addOption("q", "equal", false, "equal probability");
+		options.addOption("u", "poisson", false, "PPS without replacement, Poisson sampling");
+		options.addOption("k", "seed", true, "sampling seed, for reproducible plans");
+		options.addOption("h", "strata", true, "stratify the segments by offset, block or an index field, implies -u");
+		options.addOption("j", "budget", true, "records to sample across all groups, instead of -s per group");
+		options.addOption("B", "bytes", true, "bytes to read in expectation, split across the groups, segments picked by matching records per byte, implies -u");
+		options.addOption("L", "locality", false, "spread the sample evenly over the nodes holding it, implies -u");
+		options.addOption("C", "certainty", true, "read segments expected this many times (at most 1) once and exactly");
+		options.addOption("Y", "systematic", false, "draw segments in one systematic sweep in offset order, without -u");
+		options.addOption("G", "supersegment", true, "merge adjacent matching segments into units of this many bytes");
+		options.addOption("P", "coordinated", false, "pick segments by permanent random numbers shared across queries, implies -u");
+		options.addOption("S", "shared", false, "one sample for all groups, each segment at the largest group probability, implies -u");
+		options.addOption("M", "measure", true, "index field of measure magnitude buckets to weight segments by, implies -u");
+		options.addOption("R", "recordcost", true, "bytes a matching record counts for when packing splits");
 		options.addOption("x", "equalsize", true, "seg size for equal probability");
 		options.addOption("d", "deff", false, "enable deff estimate");
 		options.addOption("a", "app", true, "average or sum");
 		options.addOption("z", "segments", false, "number of segments");
 		options.addOption("v", "pilot", true, "pilot size");
+		options.addOption("n", "index", true, "build a missing index on a full scan, mapper:fields, ex. IndexGitHubMapper:0-2");
 		options.addOption("l", "whole", false, "SRS all segments");
 		options.addOption("y", "bootstrap", false, "bootstrapEstimate");
 		try {
@@ -342,6 +357,47 @@ public class AmazonReview {
 			if (cmdline.hasOption("q")) {
 				conf.setBoolean("map.input.sampling.equal", true);
 			}
+			if (cmdline.hasOption("u")) {
+				conf.setBoolean("map.input.sampling.poisson", true);
+			}
+			if (cmdline.hasOption("k")) {
+				conf.setLong("map.input.sampling.seed", Long.parseLong(cmdline.getOptionValue("k")));
+			}
+			if (cmdline.hasOption("h")) {
+				conf.set("map.input.sampling.strata", cmdline.getOptionValue("h"));
+			}
+			if (cmdline.hasOption("R")) {
+				conf.set("map.input.split.cost.record", cmdline.getOptionValue("R"));
+			}
+			if (cmdline.hasOption("M")) {
+				conf.set("map.input.sampling.measure", cmdline.getOptionValue("M"));
+			}
+			if (cmdline.hasOption("S")) {
+				conf.setBoolean("map.input.sampling.shared", true);
+			}
+			if (cmdline.hasOption("P")) {
+				conf.setBoolean("map.input.sampling.coordinated", true);
+			}
+			if (cmdline.hasOption("G")) {
+				conf.setLong("map.input.sampling.supersegment.bytes", Long.parseLong(cmdline.getOptionValue("G")));
+			}
+			if (cmdline.hasOption("C")) {
+				conf.set("map.input.sampling.certainty", cmdline.getOptionValue("C"));
+			}
+			if (cmdline.hasOption("Y")) {
+				conf.setBoolean("map.input.sampling.systematic", true);
+			}
+			if (cmdline.hasOption("L")) {
+				conf.setBoolean("map.input.sampling.locality", true);
+			}
+			if (cmdline.hasOption("B")) {
+				conf.setLong("map.input.sample.bytes", Long.parseLong(cmdline.getOptionValue("B")));
+				conf.setBoolean("map.input.sampling.error", false);
+			}
+			if (cmdline.hasOption("j")) {
+				conf.set("map.input.sample.budget", cmdline.getOptionValue("j"));
+				conf.setBoolean("map.input.sampling.error", false);
+			}
 			if (cmdline.hasOption("t")) {
 				conf.set("map.input.table.name", cmdline.getOptionValue("t"));
 			}
@@ -374,6 +430,12 @@ public class AmazonReview {
 			if (cmdline.hasOption("m")) {
 				conf.setLong("mapreduce.input.fileinputformat.split.maxsize", Long.parseLong(cmdline.getOptionValue("m")));
 			}
+			if (cmdline.hasOption("n")) {
+				LazyIndex.setExtractor(conf, cmdline.getOptionValue("n"));
+			}
+			if (LazyIndex.prepare(conf)) {
+				isPrecise = true;
+			}
 
 			if (isPrecise) {
 				Job job = new Job(conf, "total of AmazonReview");
@@ -393,7 +455,10 @@ public class AmazonReview {
 
 				FileInputFormat.setInputPaths(job,   new Path(input));
 				FileOutputFormat.setOutputPath(job, new Path(output));
-				job.waitForCompletion(true);
+				boolean success = job.waitForCompletion(true);
+				if (success && LazyIndex.isBuilding(conf)) {
+					LazyIndex.commit(conf, output);
+				}
 				LOG.info("end-time:");
 				return;
 			}
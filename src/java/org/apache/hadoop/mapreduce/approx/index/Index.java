@@ -12,6 +12,7 @@ import org.apache.commons.cli.ParseException;
 
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
@@ -44,10 +45,15 @@ public class Index {
 		
 		Options options = new Options();
 		options.addOption("s", "segment", true, "segment size");
+		options.addOption("b", "bytes", true, "segment size in bytes");
+		options.addOption("k", "offsets", true, "record the offset of every k-th record of a segment");
+		options.addOption("q", "quick", true, "fraction of each block to read for a quick approximate index, upgraded to an exact one afterwards");
+		options.addOption("w", "window", true, "bytes of a window of a quick index");
 		options.addOption("d", "delimiter", true, "fields delimiter");
 		options.addOption("f", "fields", true, "fields to compute histogram, ex. 0-2-4, 0th,2th,4th field");
 		options.addOption("i", "input",    true,  "Input file");
 		options.addOption("t", "table",   true,  "table name");
+		options.addOption("n", "reducers", true, "reducers per field, range partitioned on sampled keys");
 
 		try {
 			CommandLine cmdline = new GnuParser().parse(options, otherArgs);
@@ -62,6 +68,9 @@ public class Index {
 				long segSize = Long.parseLong(cmdline.getOptionValue("s"));
 				conf.setLong("map.input.segment.size", segSize);
 			}
+			if(cmdline.hasOption("b")) {
+				conf.setLong("map.input.segment.bytes", Long.parseLong(cmdline.getOptionValue("b")));
+			}
 			if(cmdline.hasOption("d")) {
 				conf.set("map.input.delimiter", cmdline.getOptionValue("d"));
 			}
@@ -69,6 +78,28 @@ public class Index {
 				conf.set("map.input.index.fields", cmdline.getOptionValue("f"));
 				numReducer = cmdline.getOptionValue("f").split("-").length;
 			}
+			int perField = 1;
+			if(cmdline.hasOption("n")) {
+				perField = Integer.parseInt(cmdline.getOptionValue("n"));
+			}
+			int rowInterval = 0;
+			if(cmdline.hasOption("k")) {
+				rowInterval = Integer.parseInt(cmdline.getOptionValue("k"));
+				conf.setInt("map.input.index.row.interval", rowInterval);
+			}
+			if(cmdline.hasOption("q")) {
+				conf.setFloat("map.input.index.quick.fraction", Float.parseFloat(cmdline.getOptionValue("q")));
+			}
+			if(cmdline.hasOption("w")) {
+				conf.setLong("map.input.index.quick.window", Long.parseLong(cmdline.getOptionValue("w")));
+			}
+			if(perField > 1) {
+				IndexShards.sampleSplitPoints(conf, IndexMapper.class, input, output, numReducer, perField);
+				numReducer = numReducer * perField;
+			}
+			if(rowInterval > 0) {
+				numReducer++;
+			}
 
 			//cmdline.getOptionValue
 
@@ -85,11 +116,27 @@ public class Index {
 
 			job.setPartitionerClass(IndexPartitioner.class);
 
-			job.setInputFormatClass(TextInputFormat.class);
+			if(IndexBootstrap.isQuick(conf)) {
+				job.setInputFormatClass(IndexQuickInputFormat.class);
+			}else{
+				job.setInputFormatClass(TextInputFormat.class);
+			}
 
 			FileInputFormat.setInputPaths(job,   new Path(input));
 			FileOutputFormat.setOutputPath(job, new Path(output));
-			System.exit(job.waitForCompletion(true) ? 0 : 1);
+			boolean success = job.waitForCompletion(true);
+			if(success && rowInterval > 0) {
+				FileSystem fs = FileSystem.get(conf);
+				fs.rename(new Path(output, String.format("part-r-%05d", numReducer - 1)), new Path(output, IndexMapper.OFFSETS));
+			}
+			if(success && perField > 1) {
+				IndexShards.writeManifests(conf, output, conf.get("map.input.index.fields", "0").split("-"), perField);
+			}
+			if(success && IndexBootstrap.isQuick(conf)) {
+				IndexBootstrap.markApproximate(conf, output);
+				success = IndexBootstrap.upgrade(job, output);
+			}
+			System.exit(success ? 0 : 1);
 
 		} catch (ParseException exp){
 			System.err.println("Error parsing command line: " + exp.getMessage());
@@ -0,0 +1,167 @@
+package org.apache.hadoop.mapreduce.approx.index;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Quick index builds for newly landed tables.
+ * Every block is cut into windows of map.input.index.quick.window bytes and only a
+ * random map.input.index.quick.fraction of them is read; each unread window is indexed
+ * as one segment whose rows and histograms are scaled from the nearest read window of
+ * the same block. The index is marked {@link #APPROXIMATE} until {@link #upgrade}
+ * replaces it with the exact one.
+ */
+public class IndexBootstrap {
+	private static final Logger LOG = Logger.getLogger("Subset.Index");
+
+	public static final String APPROXIMATE = "_approximate";
+
+	public static boolean isQuick(Configuration conf) {
+		float fraction = conf.getFloat("map.input.index.quick.fraction", 0);
+		return fraction > 0 && fraction < 1;
+	}
+
+	public static long getWindowSize(Configuration conf) {
+		return conf.getLong("map.input.index.quick.window", 4 * 1024 * 1024);
+	}
+
+	/**
+	 * Which windows of a block are read. The choice only depends on the file, the block
+	 * and the seed, so the splits and the mappers agree on it.
+	 */
+	public static boolean[] getReadWindows(Configuration conf, String file, long block, int numWindows) {
+		float fraction = conf.getFloat("map.input.index.quick.fraction", 0);
+		int numRead = Math.max(1, Math.round(fraction * numWindows));
+		Random random = new Random(conf.getLong("map.input.index.quick.seed", 0) ^ (31L * file.hashCode() + block));
+		int[] order = new int[numWindows];
+		for(int i = 0; i < numWindows; i++){
+			order[i] = i;
+		}
+		boolean[] read = new boolean[numWindows];
+		for(int i = 0; i < numRead; i++){
+			int j = i + random.nextInt(numWindows - i);
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+			read[order[i]] = true;
+		}
+		return read;
+	}
+
+	/**
+	 * The read window nearest to each window of a block, the lower one on ties.
+	 */
+	public static int[] getNearestRead(boolean[] read) {
+		int[] nearest = new int[read.length];
+		int last = -1;
+		for(int i = 0; i < read.length; i++){
+			if(read[i]){
+				last = i;
+			}
+			nearest[i] = last;
+		}
+		last = -1;
+		for(int i = read.length - 1; i >= 0; i--){
+			if(read[i]){
+				last = i;
+			}
+			if(last >= 0 && (nearest[i] < 0 || last - i < i - nearest[i])){
+				nearest[i] = last;
+			}
+		}
+		return nearest;
+	}
+
+	public static void markApproximate(Configuration conf, String output) throws IOException {
+		FileSystem.get(conf).create(new Path(output, APPROXIMATE)).close();
+	}
+
+	/**
+	 * Submit a rebuild of the index of a finished quick job over all the data into
+	 * output_exact and return without waiting for it; the job swaps the exact index in
+	 * when it commits, see {@link UpgradeCommitter}. Queries keep using the approximate
+	 * index until the swap, and keep it if the rebuild fails.
+	 * @return true if the rebuild was submitted
+	 */
+	public static boolean upgrade(Job quickJob, String output) throws Exception {
+		Configuration conf = new Configuration(quickJob.getConfiguration());
+		conf.setFloat("map.input.index.quick.fraction", 0);
+		conf.set("map.input.index.upgrade.target", output);
+		String exact = output + "_exact";
+		Job job = new Job(conf, quickJob.getJobName());
+		job.setInputFormatClass(TextInputFormat.class);
+		job.setOutputFormatClass(UpgradeOutputFormat.class);
+		FileOutputFormat.setOutputPath(job, new Path(exact));
+		job.submit();
+		LOG.info("exact index of " + output + " is built by " + job.getJobID());
+		return true;
+	}
+
+	/**
+	 * Move a committed exact index over the approximate one: the approximate index is
+	 * renamed aside, the exact one renamed in, and only then the approximate one deleted,
+	 * so the table always has an index and the approximate one is put back if the exact
+	 * one cannot be moved in.
+	 */
+	static void swap(FileSystem fs, Path exact, Path output) throws IOException {
+		Path old = new Path(output.toString() + "_old");
+		fs.delete(old, true);
+		if(!fs.rename(output, old)){
+			throw new IOException("Cannot move the approximate index " + output + " aside");
+		}
+		if(!fs.rename(exact, output)){
+			fs.rename(old, output);
+			throw new IOException("Cannot move the exact index " + exact + " in, kept the approximate one");
+		}
+		fs.delete(old, true);
+	}
+
+	/**
+	 * Commits the exact index of {@link #upgrade} and swaps it in, in the cleanup of the job
+	 * so it does not depend on the submitting client.
+	 */
+	public static class UpgradeCommitter extends FileOutputCommitter {
+		private Path exact;
+
+		public UpgradeCommitter(Path exact, TaskAttemptContext context) throws IOException {
+			super(exact, context);
+			this.exact = exact;
+		}
+
+		public void commitJob(JobContext context) throws IOException {
+			super.commitJob(context);
+			Configuration conf = context.getConfiguration();
+			FileSystem fs = exact.getFileSystem(conf);
+			if(conf.getInt("map.input.index.row.interval", 0) > 0){
+				fs.rename(new Path(exact, String.format("part-r-%05d", context.getNumReduceTasks() - 1)), new Path(exact, IndexMapper.OFFSETS));
+			}
+			int perField = conf.getInt("map.input.index.reducers.per.field", 1);
+			if(perField > 1){
+				IndexShards.writeManifests(conf, exact.toString(), conf.get("map.input.index.fields", "0").split("-"), perField);
+			}
+			swap(fs, exact, new Path(conf.get("map.input.index.upgrade.target")));
+		}
+	}
+
+	public static class UpgradeOutputFormat extends TextOutputFormat<NullWritable, Text> {
+		public OutputCommitter getOutputCommitter(TaskAttemptContext context) throws IOException {
+			return new UpgradeCommitter(getOutputPath(context), context);
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package org.apache.hadoop.mapreduce.approx.index;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.Integer;
+import java.lang.reflect.Method;
 import java.util.Hashtable;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -9,64 +11,182 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.regex.Pattern;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.Level;
 
+/**
+ * Build the per segment histograms of the index fields of delimited text.
+ * A segment is closed when it reaches map.input.segment.size records or
+ * map.input.segment.bytes bytes, whichever comes first (0 disables a bound),
+ * and it never spans an HDFS block: every record of a segment starts in the
+ * same block, whose ordinal is written with the segment.
+ * Output: key "keyword++offset--field", value "offset,length,rows,frequency,block".
+ * With map.input.index.row.interval k > 0 the byte offset of every k-th record of a
+ * segment is also written, delta encoded, as "offset,k,delta:delta:..." under the
+ * extra field number indexFields.length; the drivers store it as {@link #OFFSETS}.
+ * In a quick build ({@link IndexBootstrap}) the mapper of a read window also emits one
+ * estimated segment for every unread window of the block that is nearest to it.
+ * In a multi table build ({@link IndexTables}) the field numbers are shifted by the
+ * map.input.index.field.offset of the table.
+ * With a side output set ({@link LazyIndex}) the index lines are written there as
+ * "key\tvalue" instead of to the context.
+ * An index field "m<column>" of delimited text holds the {@link #getMagnitudeBucket}
+ * of the measure in that column instead of its value, so the planner can weight
+ * segments by their share of a heavy tailed sum.
+ * Dataset specific mappers only override {@link #getKeywords}.
+ */
 public class IndexMapper extends Mapper<LongWritable, Text, Text, Text>{
 	private static final Logger LOG = Logger.getLogger("Subset");
 
-	private long recordCount;
+	public static final String OFFSETS = "_offsets";
+
+	protected Configuration conf;
+	protected String delimiter;
+	protected String[] indexFields;
+
+	private int fieldOffset;
 	private long segSize;
-	private Configuration conf;
-	private String delimiter;
-	private String[] indexFields;
+	private long segBytes;
+	private long blockSize;
 	private List<Hashtable<String, Long>> histogram;
-	private List<Hashtable<String, Long>> preHistogram;
+	private List<List<String>> keywords;
+	private long recordCount;
 	private long segPosition;
-	private long preSegPosition;
+	private long segBlock;
+	private long lastEnd;
+	private int rowInterval;
+	private StringBuilder rowOffsets;
+	private long lastRowOffset;
+	private boolean quick;
+	private Path path;
+	private long fileLength;
+	private long splitStart;
+	private long windowStart;
+	private long windowRows;
+	private List<Hashtable<String, Long>> windowHistogram;
+	private PrintWriter sideOutput;
+
+	/**
+	 * Read the options needed to extract keywords, so an extractor can be used outside an index job.
+	 */
+	public void configure(Configuration conf) {
+		this.conf = conf;
+		delimiter = conf.get("map.input.delimiter", ",");
+		indexFields = conf.get("map.input.index.fields", "0").split("-");
+	}
+
+	public void setSideOutput(PrintWriter sideOutput) {
+		this.sideOutput = sideOutput;
+	}
+
+	public PrintWriter getSideOutput() {
+		return sideOutput;
+	}
+
+	private void write(Context context, Text key, Text value) throws IOException, InterruptedException {
+		if(sideOutput != null){
+			sideOutput.println(key.toString() + "\t" + value.toString());
+		}else{
+			context.write(key, value);
+		}
+	}
+
+	/**
+	 * Collect the keywords of one record, one list per index field.
+	 * @return false if the record is malformed and its keywords must not be counted
+	 */
+	public boolean getKeywords(Text value, List<List<String>> keywords) {
+		String[] fields = (value.toString()).split(Pattern.quote(delimiter));
+		for(int i = 0; i < indexFields.length; i++){
+			if(indexFields[i].startsWith("m")){
+				int index = Integer.parseInt(indexFields[i].substring(1));
+				try {
+					keywords.get(i).add(getMagnitudeBucket(Double.parseDouble(fields[index])));
+				} catch (NumberFormatException e) {
+					// no measure in this record
+				}
+				continue;
+			}
+			int index = Integer.parseInt(indexFields[i]);
+			keywords.get(i).add(fields[index]);
+		}
+		return true;
+	}
+
+	/**
+	 * Coarse magnitude of a measure value: "m0" below 1, else "mk" for [2^(k-1), 2^k).
+	 */
+	public static String getMagnitudeBucket(double value) {
+		return "m" + String.valueOf(64 - Long.numberOfLeadingZeros((long)Math.abs(value)));
+	}
+
+	/**
+	 * The value a record of a magnitude bucket stands for, the middle of its range.
+	 */
+	public static double getBucketMidpoint(String bucket) {
+		int k = Integer.parseInt(bucket.substring(1));
+		return k == 0 ? 0 : 0.75 * Math.pow(2, k);
+	}
 
 	public void setup(Context context
                        ) throws IOException, InterruptedException {
 		LOG.setLevel(Level.INFO);
-		recordCount = 0;
-		segPosition = 0;
-		preSegPosition = 0;
-		conf = context.getConfiguration();
+		FileSplit split = getFileSplit(context.getInputSplit());
+		configure(IndexTables.getTableConf(LazyIndex.getBuildConf(context.getConfiguration()), split.getPath()));
+		fieldOffset = conf.getInt("map.input.index.field.offset", 0);
 		segSize = conf.getLong("map.input.segment.size", 1000);
-		delimiter = conf.get("map.input.delimiter", ",");
-		//LOG.info("delimiter:"+delimiter);
-		indexFields = conf.get("map.input.index.fields", "0").split("-");
+		segBytes = conf.getLong("map.input.segment.bytes", 0);
+		rowInterval = conf.getInt("map.input.index.row.interval", 0);
+		rowOffsets = new StringBuilder();
+		path = split.getPath();
+		splitStart = split.getStart();
+		FileSystem fs = path.getFileSystem(conf);
+		blockSize = fs.getFileStatus(path).getBlockSize();
+		fileLength = fs.getFileStatus(path).getLen();
+		quick = IndexBootstrap.isQuick(conf);
 		histogram  = new ArrayList<Hashtable<String, Long>>(indexFields.length);
+		windowHistogram  = new ArrayList<Hashtable<String, Long>>(indexFields.length);
+		keywords = new ArrayList<List<String>>(indexFields.length);
 		for(int i = 0; i < indexFields.length; i++){
 			histogram.add(new Hashtable<String, Long>());
+			windowHistogram.add(new Hashtable<String, Long>());
+			keywords.add(new ArrayList<String>());
 		}
-		preHistogram = null;
+		windowStart = -1;
+		windowRows = 0;
+		recordCount = 0;
+		segPosition = 0;
+		segBlock = 0;
+		lastEnd = 0;
 	}
-	public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-		
 
-		if(segSize == 0){
-			String[] fields = (value.toString()).split(Pattern.quote(delimiter));
-			//LOG.info("size:"+fields.length);
-			//int[] index = new int[indexFields.length];
-			for(int i = 0; i < indexFields.length; i++){
-				int index = Integer.parseInt(indexFields[i]);
-				String keyword = fields[index];
-				//LOG.info("keyword:" + keyword);
+	public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+		long position = key.get();
+		if(recordCount > 0 && isSegmentEnd(position)){
+			emitSegment(context, position);
+		}
+		if(recordCount == 0){
+			segPosition = position;
+			segBlock = position / blockSize;
+			lastRowOffset = position;
+		}
+		for(List<String> fieldKeywords : keywords){
+			fieldKeywords.clear();
+		}
+		// a malformed record adds no keywords but is still a row of the segment
+		boolean valid = getKeywords(value, keywords);
+		for(int i = 0; valid && i < indexFields.length; i++){
+			for(String keyword : keywords.get(i)){
 				Long preValue = histogram.get(i).get(keyword);
 				if(preValue != null){
 					histogram.get(i).put(keyword, preValue + 1);
@@ -74,58 +194,164 @@ public class IndexMapper extends Mapper<LongWritable, Text, Text, Text>{
 				else{
 					histogram.get(i).put(keyword, new Long(1));
 				}
+				if(quick){
+					preValue = windowHistogram.get(i).get(keyword);
+					windowHistogram.get(i).put(keyword, preValue == null ? 1 : preValue + 1);
+				}
 			}
-			recordCount++;
-			return;
 		}
-
-		if(recordCount == segSize){
-			if(preHistogram != null){
-				//emit histogram for last segment;
-				long currentPosition = key.get();
-				for(int i = 0; i < preHistogram.size(); i++){
-					Set<Entry<String, Long>> entries =  preHistogram.get(i).entrySet();
-					for(Entry<String, Long> ent : entries){
-						context.write(new Text(ent.getKey() + "++" + String.valueOf(preSegPosition) + "--" + String.valueOf(i)), 
-							new Text(String.format("%d,%d,%d,%d", 
-								preSegPosition, currentPosition - preSegPosition, segSize, ent.getValue().longValue())));
-						//LOG.info("entry:" + ent.getKey());
-					}
-				}
+		if(quick){
+			if(windowStart < 0){
+				windowStart = position;
 			}
-			preSegPosition = segPosition;
-			preHistogram = histogram;
-			histogram = new ArrayList<Hashtable<String, Long>>(indexFields.length);
-			for(int i = 0; i < indexFields.length; i++){
-				histogram.add(new Hashtable<String, Long>());
+			windowRows++;
+		}
+		if(rowInterval > 0 && recordCount > 0 && recordCount % rowInterval == 0){
+			if(rowOffsets.length() > 0){
+				rowOffsets.append(':');
 			}
-			recordCount = 0;
+			rowOffsets.append(position - lastRowOffset);
+			lastRowOffset = position;
 		}
-		if(recordCount == 0){
-			segPosition = key.get();
+		recordCount++;
+		// the line terminator is not in the record, see getRecordEnd
+		lastEnd = position + value.getLength();
+	}
+
+	/**
+	 * A record starting at position opens a new segment if the current one is full
+	 * or the record starts in another block.
+	 */
+	private boolean isSegmentEnd(long position) {
+		if(segSize > 0 && recordCount >= segSize){
+			return true;
+		}
+		if(segBytes > 0 && position - segPosition >= segBytes){
+			return true;
 		}
+		return position / blockSize != segBlock;
+	}
 
-		//************************************************************************************
-		String[] fields = (value.toString()).split(Pattern.quote(delimiter));
-		//LOG.info("size:"+fields.length);
-		//int[] index = new int[indexFields.length];
-		for(int i = 0; i < indexFields.length; i++){
-			int index = Integer.parseInt(indexFields[i]);
-			String keyword = fields[index];
-			//LOG.info("keyword:" + keyword);
-			Long preValue = histogram.get(i).get(keyword);
-			if(preValue != null){
-				histogram.get(i).put(keyword, preValue + 1);
+	/**
+	 * Emit the histogram of the current segment, which ends where the next one starts.
+	 */
+	private void emitSegment(Context context, long end) throws IOException, InterruptedException {
+		for(int i = 0; i < histogram.size(); i++){
+			Set<Entry<String, Long>> entries =  histogram.get(i).entrySet();
+			for(Entry<String, Long> ent : entries){
+				write(context, new Text(ent.getKey() + "++" + String.valueOf(segPosition) + "--" + String.valueOf(fieldOffset + i)),
+					new Text(String.format("%d,%d,%d,%d,%d",
+						segPosition, end - segPosition, recordCount, ent.getValue().longValue(), segBlock)));
 			}
-			else{
-				histogram.get(i).put(keyword, new Long(1));
+			histogram.get(i).clear();
+		}
+		if(rowOffsets.length() > 0){
+			write(context, new Text(String.valueOf(segPosition) + "++" + String.valueOf(segPosition) + "--" + String.valueOf(fieldOffset + indexFields.length)),
+				new Text(String.valueOf(rowInterval) + "," + rowOffsets.toString()));
+			rowOffsets.setLength(0);
+		}
+		recordCount = 0;
+	}
+
+	/**
+	 * The file split of a task, unwrapped from the package private TaggedInputSplit
+	 * when the job reads through MultipleInputs.
+	 */
+	public static FileSplit getFileSplit(InputSplit split) throws IOException {
+		if(split instanceof FileSplit){
+			return (FileSplit)split;
+		}
+		try {
+			Method method = split.getClass().getDeclaredMethod("getInputSplit");
+			method.setAccessible(true);
+			return (FileSplit)method.invoke(split);
+		} catch (Exception e) {
+			throw new IOException("Unsupported input split " + split.getClass().getName(), e);
+		}
+	}
+
+	/**
+	 * Decode a line of the {@link #OFFSETS} sidecar into the byte offsets of records
+	 * 0, k, 2k, ... of the segment.
+	 */
+	public static long[] getRowOffsets(String line) {
+		String[] meta = line.split(Pattern.quote(","));
+		String[] deltas = meta[2].split(Pattern.quote(":"));
+		long[] offsets = new long[deltas.length + 1];
+		offsets[0] = Long.parseLong(meta[0]);
+		for(int i = 0; i < deltas.length; i++){
+			offsets[i + 1] = offsets[i] + Long.parseLong(deltas[i]);
+		}
+		return offsets;
+	}
+
+	/**
+	 * Emit one segment per unread window of the block whose nearest read window is this
+	 * split, with the rows and keyword frequencies of this window scaled by the byte ratio.
+	 * Every keyword seen here keeps a frequency of at least 1, so it stays reachable.
+	 */
+	private void emitUnreadWindows(Context context) throws IOException, InterruptedException {
+		if(windowRows == 0){
+			return;
+		}
+		long windowSize = IndexBootstrap.getWindowSize(conf);
+		long block = splitStart / blockSize;
+		long start = block * blockSize;
+		long end = Math.min(fileLength, start + blockSize);
+		int numWindows = (int)((end - start + windowSize - 1) / windowSize);
+		boolean[] read = IndexBootstrap.getReadWindows(conf, path.toString(), block, numWindows);
+		int[] nearest = IndexBootstrap.getNearestRead(read);
+		int own = (int)((splitStart - start) / windowSize);
+		double readBytes = lastEnd - windowStart;
+		for(int w = 0; w < numWindows; w++){
+			if(read[w] || nearest[w] != own){
+				continue;
 			}
+			segPosition = start + w * windowSize;
+			segBlock = block;
+			long length = Math.min(windowSize, end - segPosition);
+			double scale = length / readBytes;
+			recordCount = Math.max(1, Math.round(windowRows * scale));
+			for(int i = 0; i < indexFields.length; i++){
+				for(Entry<String, Long> ent : windowHistogram.get(i).entrySet()){
+					histogram.get(i).put(ent.getKey(), Math.min(recordCount, Math.max(1, Math.round(ent.getValue() * scale))));
+				}
+			}
+			emitSegment(context, segPosition + length);
 		}
+	}
 
-		//*****************************************************************
-		recordCount++;
-		
+	/**
+	 * End of the last record read, past its "\n" or "\r\n" terminator, which is where
+	 * the first segment of the next split starts. The terminator is read from the file
+	 * as the record does not hold it.
+	 */
+	private long getRecordEnd() throws IOException {
+		if(lastEnd >= fileLength){
+			return fileLength;
+		}
+		FSDataInputStream in = path.getFileSystem(conf).open(path);
+		try {
+			in.seek(lastEnd);
+			if(in.read() == '\r' && lastEnd + 1 < fileLength && in.read() == '\n'){
+				return lastEnd + 2;
+			}
+			return lastEnd + 1;
+		} finally {
+			in.close();
+		}
+	}
 
+	/**
+	 * Emit the trailing segment, and in a quick build the unread windows.
+	 */
+	public void finish(Context context) throws IOException, InterruptedException {
+		if(recordCount != 0){
+			emitSegment(context, getRecordEnd());
+		}
+		if(quick){
+			emitUnreadWindows(context);
+		}
 	}
 
 	public void run(Context context) throws IOException, InterruptedException {
@@ -134,43 +360,10 @@ public class IndexMapper extends Mapper<LongWritable, Text, Text, Text>{
 		  while (context.nextKeyValue()) {
 		    map(context.getCurrentKey(), context.getCurrentValue(), context);
 		  }
-		  if(segSize == 0){
-		  	FileSplit split = (FileSplit)context.getInputSplit();
-		  	for(int i = 0; i < histogram.size(); i++){
-		  		Set<Entry<String, Long>> entries =  histogram.get(i).entrySet();
-		  		for(Entry<String, Long> ent : entries){
-		  			context.write(new Text(ent.getKey()  + "++" + String.valueOf(preSegPosition) + "--" + String.valueOf(i)), 
-						new Text(String.format("%d,%d,%d,%d", 
-							split.getStart(), split.getLength(), recordCount, ent.getValue().longValue())));
-		  		}
-		  	}
-		  	recordCount = 0;
-		  }
-		  if(recordCount != 0){
-		  	for(int i = 0; i < histogram.size(); i++){
-			  	Set<Entry<String, Long>> entries =  histogram.get(i).entrySet();
-			  	for(Entry<String, Long> ent : entries){
-			  		Long value = preHistogram.get(i).get(ent.getKey());
-			  		if(value != null){
-			  			preHistogram.get(i).put(ent.getKey(), value + ent.getValue());
-			  		}
-			  		else{
-			  			preHistogram.get(i).put(ent.getKey(), new Long(1));
-			  		}
-			  	}
-			  	Set<Entry<String, Long>> pEntries =  preHistogram.get(i).entrySet();
-			  	FileSplit split = (FileSplit)context.getInputSplit();
-			  	long currentPosition = split.getStart() + split.getLength();
-				for(Entry<String, Long> ent : pEntries){
-					context.write(new Text(ent.getKey()  + "++" + String.valueOf(preSegPosition) + "--" + String.valueOf(i)), 
-						new Text(String.format("%d,%d,%d,%d", 
-							preSegPosition, currentPosition - preSegPosition, segSize + recordCount, ent.getValue().longValue())));
-				}
-		  	}
-		  }
+		  finish(context);
 		  //LOG.info("map done");
 		} finally {
 		  cleanup(context);
 		}
 	}
-}
\ No newline at end of file
+}
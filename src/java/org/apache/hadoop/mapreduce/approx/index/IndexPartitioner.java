@@ -1,5 +1,10 @@
 package org.apache.hadoop.mapreduce.approx.index;
 
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 //import org.apache.hadoop.io.IntWritable;
 
@@ -9,8 +14,51 @@ import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
  * A partitioner that checks if we have a parameter and send it to the specified one.
  * \0PARAMETER-1-1 -> 1
  * origkey from map 10 -> origkey10
+ * With map.input.index.reducers.per.field > 1 every field gets that many reducers and
+ * the keywords of a field are range partitioned on the sampled split points
+ * map.input.index.splits.i, so reducer i*n+j writes the j-th ordered shard of field i.
+ * Field numbers past the index fields (the row offset sidecar) get the reducers after the shards.
  */
-public class IndexPartitioner<K,V> extends HashPartitioner<K,V> {
+public class IndexPartitioner<K,V> extends HashPartitioner<K,V> implements Configurable {
+	private Configuration conf;
+	private int perField = 1;
+	private String[][] splits;
+
+	public void setConf(Configuration conf) {
+		this.conf = conf;
+		perField = conf.getInt("map.input.index.reducers.per.field", 1);
+		if(perField > 1){
+			int numFields = conf.get("map.input.index.fields", "0").split("-").length;
+			splits = new String[numFields][];
+			for(int i = 0; i < numFields; i++){
+				splits[i] = getSplitPoints(conf, i);
+			}
+		}
+	}
+
+	public Configuration getConf() {
+		return conf;
+	}
+
+	/**
+	 * Split points of a field, sorted, as set by {@link IndexShards#sampleSplitPoints}.
+	 */
+	public static String[] getSplitPoints(Configuration conf, int field) {
+		String value = conf.get("map.input.index.splits." + String.valueOf(field), "");
+		if(value.length() == 0){
+			return new String[0];
+		}
+		return value.split(Pattern.quote("*+*"));
+	}
+
+	/**
+	 * Shard of a field that holds the keyword: the number of split points not above it.
+	 */
+	public static int getShard(String[] splitPoints, String keyword) {
+		int pos = Arrays.binarySearch(splitPoints, keyword, IndexShards.KEY_ORDER);
+		return pos >= 0 ? pos + 1 : -(pos + 1);
+	}
+
 	/**
 	 * Overwrite the partitioner to send to everybody.
 	 */
@@ -18,11 +66,19 @@ public class IndexPartitioner<K,V> extends HashPartitioner<K,V> {
 	public int getPartition(K key, V value, int numReduceTasks) {
 		if (key instanceof Text) {
 			String aux = ((Text)key).toString();
-			
+
 			// Check if it's a parameter, it has the \0 first to guarantee is the first when sorting
 			int lastIndex = aux.lastIndexOf("--");
 			if (lastIndex > 0) {
-				return Integer.parseInt(aux.substring(lastIndex+2, aux.length())) % numReduceTasks;
+				int field = Integer.parseInt(aux.substring(lastIndex+2, aux.length()));
+				if(perField > 1 && field < splits.length){
+					String keyword = aux.substring(0, aux.lastIndexOf("++"));
+					return (field * perField + getShard(splits[field], keyword)) % numReduceTasks;
+				}
+				if(perField > 1){
+					return (splits.length * perField + field - splits.length) % numReduceTasks;
+				}
+				return field % numReduceTasks;
 			}
 		}
 		// The default case shouldn't happen
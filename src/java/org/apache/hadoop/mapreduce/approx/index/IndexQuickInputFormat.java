@@ -0,0 +1,50 @@
+package org.apache.hadoop.mapreduce.approx.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+
+/**
+ * Text input restricted to the windows a quick index build reads, one split per
+ * window, see {@link IndexBootstrap}.
+ */
+public class IndexQuickInputFormat extends TextInputFormat {
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		Configuration conf = job.getConfiguration();
+		long windowSize = IndexBootstrap.getWindowSize(conf);
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+		for(FileStatus file : listStatus(job)){
+			Path path = file.getPath();
+			FileSystem fs = path.getFileSystem(conf);
+			long length = file.getLen();
+			long blockSize = file.getBlockSize();
+			BlockLocation[] blocks = fs.getFileBlockLocations(file, 0, length);
+			for(long block = 0; block * blockSize < length; block++){
+				long start = block * blockSize;
+				long end = Math.min(length, start + blockSize);
+				int numWindows = (int)((end - start + windowSize - 1) / windowSize);
+				boolean[] read = IndexBootstrap.getReadWindows(conf, path.toString(), block, numWindows);
+				String[] hosts = blocks[getBlockIndex(blocks, start)].getHosts();
+				for(int i = 0; i < numWindows; i++){
+					if(read[i]){
+						long offset = start + i * windowSize;
+						splits.add(new FileSplit(path, offset, Math.min(windowSize, end - offset), hosts));
+					}
+				}
+			}
+		}
+		return splits;
+	}
+}
@@ -0,0 +1,29 @@
+package org.apache.hadoop.mapreduce.approx.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+
+/**
+ * Text input restricted to a random subset of the input splits, used to sample
+ * the keywords of a table before the index is built.
+ */
+public class IndexSampleInputFormat extends TextInputFormat {
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		List<InputSplit> splits = super.getSplits(job);
+		int numSplits = job.getConfiguration().getInt("map.input.index.sample.splits", 10);
+		if(splits.size() <= numSplits){
+			return splits;
+		}
+		Collections.shuffle(splits, new Random());
+		return new ArrayList<InputSplit>(splits.subList(0, numSplits));
+	}
+}
@@ -0,0 +1,182 @@
+package org.apache.hadoop.mapreduce.approx.index;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Range partitioned index builds: split point sampling before the index job and
+ * the shard manifest written after it.
+ * A sharded field is a directory, named part-r-%05d by the field like an unsharded
+ * index file, holding the shards part-r-00000..part-r-(n-1) in key order, plus a
+ * _manifest with one "shard,lower,upper" line per shard (lower inclusive, upper
+ * exclusive, empty for unbounded).
+ * Keywords are ordered as the reducers sort them, by the UTF-8 bytes of their Text.
+ */
+public class IndexShards {
+	private static final Logger LOG = Logger.getLogger("Subset.Index");
+
+	public static final String MANIFEST = "_manifest";
+
+	public static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			return new Text(a).compareTo(new Text(b));
+		}
+	};
+
+	/**
+	 * Run the index mapper over a few random splits of the input and pick, for every field,
+	 * perField-1 split points that cut the sampled index lines into equal ranges.
+	 * The split points are stored in conf for {@link IndexPartitioner}.
+	 */
+	public static void sampleSplitPoints(Configuration conf, Class<? extends IndexMapper> mapperClass,
+			String input, String output, int numFields, int perField) throws Exception {
+		Configuration sampleConf = new Configuration(conf);
+		sampleConf.setInt("map.input.index.reducers.per.field", 1);
+		sampleConf.setFloat("map.input.index.quick.fraction", 0);
+		Path sampleOutput = new Path(output + "_sample");
+
+		Job job = new Job(sampleConf, "Sample index split points");
+		job.setJarByClass(IndexShards.class);
+		job.setNumReduceTasks(numFields);
+		job.setMapperClass(mapperClass);
+		job.setReducerClass(IndexReducer.class);
+
+		job.setMapOutputKeyClass(Text.class);
+		job.setMapOutputValueClass(Text.class);
+		job.setOutputKeyClass(NullWritable.class);
+		job.setOutputValueClass(Text.class);
+
+		job.setPartitionerClass(IndexPartitioner.class);
+
+		job.setInputFormatClass(IndexSampleInputFormat.class);
+
+		FileInputFormat.setInputPaths(job, new Path(input));
+		FileOutputFormat.setOutputPath(job, sampleOutput);
+		if(!job.waitForCompletion(true)){
+			throw new IOException("Sampling index split points failed");
+		}
+
+		FileSystem fs = FileSystem.get(conf);
+		for(int i = 0; i < numFields; i++){
+			// index lines per keyword, the reducer load of the keyword
+			TreeMap<String, Long> counts = new TreeMap<String, Long>(KEY_ORDER);
+			long total = 0;
+			Path part = new Path(sampleOutput, String.format("part-r-%05d", i));
+			if(fs.exists(part)){
+				BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(fs.open(part)));
+				String line = bufferedReader.readLine();
+				while(line != null){
+					String keyword = line.split(Pattern.quote(","))[0];
+					Long preValue = counts.get(keyword);
+					counts.put(keyword, preValue == null ? 1 : preValue + 1);
+					total++;
+					line = bufferedReader.readLine();
+				}
+				bufferedReader.close();
+			}
+			List<String> splitPoints = new ArrayList<String>(perField - 1);
+			long acc = 0;
+			for(Map.Entry<String, Long> ent : counts.entrySet()){
+				if(splitPoints.size() == perField - 1){
+					break;
+				}
+				if(acc > 0 && acc * perField >= total * (splitPoints.size() + 1)){
+					splitPoints.add(ent.getKey());
+				}
+				acc += ent.getValue().longValue();
+			}
+			StringBuilder value = new StringBuilder();
+			for(String splitPoint : splitPoints){
+				if(value.length() > 0){
+					value.append("*+*");
+				}
+				value.append(splitPoint);
+			}
+			conf.set("map.input.index.splits." + String.valueOf(i), value.toString());
+			LOG.info("field " + String.valueOf(i) + " split points:" + value.toString());
+		}
+		fs.delete(sampleOutput, true);
+		conf.setInt("map.input.index.reducers.per.field", perField);
+	}
+
+	/**
+	 * Move the shards of every field into their own directory and describe them in a manifest.
+	 * The shards are gathered in _shards-i first, as the directory of field i takes the
+	 * name part-r-%05d of a reducer output that may not be moved yet.
+	 */
+	public static void writeManifests(Configuration conf, String output, String[] fields, int perField) throws IOException {
+		FileSystem fs = FileSystem.get(conf);
+		for(int i = 0; i < fields.length; i++){
+			String[] splitPoints = IndexPartitioner.getSplitPoints(conf, i);
+			Path fieldDir = new Path(output, "_shards-" + String.valueOf(i));
+			fs.mkdirs(fieldDir);
+			PrintWriter manifest = new PrintWriter(fs.create(new Path(fieldDir, MANIFEST)));
+			for(int j = 0; j < perField; j++){
+				String shard = String.format("part-r-%05d", j);
+				Path part = new Path(output, String.format("part-r-%05d", i * perField + j));
+				if(j > splitPoints.length){
+					// fewer distinct keywords than shards, nothing was sent here
+					fs.delete(part, false);
+					continue;
+				}
+				if(fs.exists(part)){
+					fs.rename(part, new Path(fieldDir, shard));
+				}else{
+					fs.create(new Path(fieldDir, shard)).close();
+				}
+				String lower = (j == 0) ? "" : splitPoints[j - 1];
+				String upper = (j == splitPoints.length) ? "" : splitPoints[j];
+				manifest.println(shard + "," + lower + "," + upper);
+			}
+			manifest.close();
+		}
+		for(int i = 0; i < fields.length; i++){
+			fs.rename(new Path(output, "_shards-" + String.valueOf(i)), new Path(output, String.format("part-r-%05d", i)));
+		}
+	}
+
+	/**
+	 * Index files of a field to scan for a keyword, in key order.
+	 * A plain index file is returned as is; for a sharded field only the shard whose
+	 * range holds the keyword is returned, or every shard if keyword is null.
+	 */
+	public static List<Path> getIndexFiles(FileSystem fs, Path index, String keyword) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		if(!fs.getFileStatus(index).isDir()){
+			files.add(index);
+			return files;
+		}
+		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(fs.open(new Path(index, MANIFEST))));
+		String line = bufferedReader.readLine();
+		while(line != null){
+			String[] meta = line.split(Pattern.quote(","), -1);
+			boolean aboveLower = meta[1].length() == 0 || (keyword != null && KEY_ORDER.compare(keyword, meta[1]) >= 0);
+			boolean belowUpper = meta[2].length() == 0 || (keyword != null && KEY_ORDER.compare(keyword, meta[2]) < 0);
+			if(keyword == null || (aboveLower && belowUpper)){
+				files.add(new Path(index, meta[0]));
+			}
+			line = bufferedReader.readLine();
+		}
+		bufferedReader.close();
+		return files;
+	}
+}
@@ -0,0 +1,154 @@
+package org.apache.hadoop.mapreduce.approx.index;
+
+import java.lang.Exception;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+
+/**
+ * Build the indexes of several tables in one job.
+ * Every table is given as "input,table,mapper,fields[,segment size]" and read through
+ * MultipleInputs with its own index mapper. The fields of all tables are numbered one
+ * after the other (map.input.index.table.name.field.offset), each gets its own reducer,
+ * and the outputs are moved to /index/table/name as by the single table drivers.
+ */
+public class IndexTables {
+
+	private static final String OUTPUT_PARENT = "/index/table/";
+
+	public static void main(String[] args) throws Exception {
+		Configuration conf = new Configuration();
+		// Parsing options
+		String[] otherArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+		Options options = new Options();
+		options.addOption("t", "table", true, "input,table,mapper,fields[,segment size] of a table, repeat for every table");
+		options.addOption("s", "segment", true, "default segment size");
+		options.addOption("b", "bytes", true, "segment size in bytes");
+		options.addOption("d", "delimiter", true, "fields delimiter");
+
+		try {
+			CommandLine cmdline = new GnuParser().parse(options, otherArgs);
+			String[] specs = cmdline.getOptionValues("t");
+			if (specs == null) {
+				throw new ParseException("No table option");
+			}
+			if(cmdline.hasOption("s")) {
+				conf.setLong("map.input.segment.size", Long.parseLong(cmdline.getOptionValue("s")));
+			}
+			if(cmdline.hasOption("b")) {
+				conf.setLong("map.input.segment.bytes", Long.parseLong(cmdline.getOptionValue("b")));
+			}
+			if(cmdline.hasOption("d")) {
+				conf.set("map.input.delimiter", cmdline.getOptionValue("d"));
+			}
+
+			Job job = new Job(conf, "Build histograms");
+			conf = job.getConfiguration();
+			FileSystem fs = FileSystem.get(conf);
+			String[] tables = new String[specs.length];
+			int numReducer = 0;
+			for(int i = 0; i < specs.length; i++){
+				String[] spec = specs[i].split(Pattern.quote(","));
+				if(spec.length < 4){
+					throw new ParseException("Bad table " + specs[i]);
+				}
+				Path input = fs.makeQualified(new Path(spec[0]));
+				tables[i] = spec[1];
+				String name = spec[2];
+				if(name.indexOf('.') < 0){
+					name = IndexTables.class.getPackage().getName() + "." + name;
+				}
+				Class<? extends IndexMapper> mapperClass = Class.forName(name).asSubclass(IndexMapper.class);
+				String prefix = "map.input.index.table." + tables[i];
+				conf.set(prefix + ".input", input.toString());
+				conf.set(prefix + ".fields", spec[3]);
+				if(spec.length > 4){
+					conf.setLong(prefix + ".segment.size", Long.parseLong(spec[4]));
+				}
+				conf.setInt(prefix + ".field.offset", numReducer);
+				numReducer += spec[3].split("-").length;
+				MultipleInputs.addInputPath(job, input, TextInputFormat.class, mapperClass);
+			}
+			conf.setStrings("map.input.index.tables", tables);
+
+			String output = OUTPUT_PARENT + "_tables";
+			job.setJarByClass(IndexTables.class);
+			job.setNumReduceTasks(numReducer);
+			job.setReducerClass(IndexReducer.class);
+
+			job.setMapOutputKeyClass(Text.class);
+			job.setMapOutputValueClass(Text.class);
+			job.setOutputKeyClass(NullWritable.class);
+			job.setOutputValueClass(Text.class);
+
+			job.setPartitionerClass(IndexPartitioner.class);
+
+			FileOutputFormat.setOutputPath(job, new Path(output));
+			boolean success = job.waitForCompletion(true);
+			if(success) {
+				for(String table : tables){
+					int offset = conf.getInt("map.input.index.table." + table + ".field.offset", 0);
+					int numFields = conf.get("map.input.index.table." + table + ".fields").split("-").length;
+					Path tableDir = new Path(OUTPUT_PARENT + table);
+					fs.mkdirs(tableDir);
+					for(int i = 0; i < numFields; i++){
+						Path field = new Path(tableDir, String.format("part-r-%05d", i));
+						fs.delete(field, true);
+						fs.rename(new Path(output, String.format("part-r-%05d", offset + i)), field);
+					}
+				}
+				fs.delete(new Path(output), true);
+			}
+			System.exit(success ? 0 : 1);
+
+		} catch (ParseException exp){
+			System.err.println("Error parsing command line: " + exp.getMessage());
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(IndexTables.class.toString(), options);
+			ToolRunner.printGenericCommandUsage(System.out);
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * The configuration an index mapper of the file at path runs with: in a multi table
+	 * build the options of the table whose input holds the file override the job ones.
+	 */
+	public static Configuration getTableConf(Configuration conf, Path path) {
+		String[] tables = conf.getStrings("map.input.index.tables");
+		if(tables == null){
+			return conf;
+		}
+		String file = path.toString();
+		for(String table : tables){
+			String prefix = "map.input.index.table." + table;
+			String input = conf.get(prefix + ".input");
+			if(file.equals(input) || file.startsWith(input + "/")){
+				Configuration tableConf = new Configuration(conf);
+				tableConf.set("map.input.table.name", table);
+				tableConf.set("map.input.index.fields", conf.get(prefix + ".fields"));
+				tableConf.setLong("map.input.segment.size", conf.getLong(prefix + ".segment.size", conf.getLong("map.input.segment.size", 1000)));
+				tableConf.setInt("map.input.index.field.offset", conf.getInt(prefix + ".field.offset", 0));
+				return tableConf;
+			}
+		}
+		throw new IllegalArgumentException("No table holds " + file);
+	}
+}
@@ -0,0 +1,208 @@
+package org.apache.hadoop.mapreduce.approx.index;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Build a missing index as a side effect of the first query on a table.
+ * If an index file named in the where or group by clause is missing and an extractor is
+ * set (map.input.index.lazy.extractor, fields map.input.index.lazy.fields) the query runs
+ * as a full scan; every map task also feeds its records to the extractor and writes the
+ * index lines to a task side file, and {@link #commit} sorts them into the index.
+ * The build reads its fields from map.input.index.lazy.fields, so the query keeps its own
+ * map.input.index.fields.
+ */
+public class LazyIndex {
+	private static final Logger LOG = Logger.getLogger("Subset.Index");
+
+	private static final String INDEX_PARENT = "/index/table/";
+	private static final String SIDE_PREFIX = "lazyindex-";
+
+	/**
+	 * Parse "mapper:fields", ex. IndexGitHubMapper:0-2, the mapper package qualified if needed.
+	 */
+	public static void setExtractor(Configuration conf, String spec) {
+		String[] parts = spec.split(Pattern.quote(":"));
+		String name = parts[0];
+		if(name.indexOf('.') < 0){
+			name = LazyIndex.class.getPackage().getName() + "." + name;
+		}
+		conf.set("map.input.index.lazy.extractor", name);
+		conf.set("map.input.index.lazy.fields", parts.length > 1 ? parts[1] : "0");
+	}
+
+	/**
+	 * Switch the query to a full scan that builds the index if the index is missing.
+	 * @return true if the query must run precise
+	 */
+	public static boolean prepare(Configuration conf) throws IOException {
+		if(conf.get("map.input.index.lazy.extractor") == null || !isMissing(conf)){
+			return false;
+		}
+		LOG.info("no index for " + conf.get("map.input.table.name", "") + ", building it with a full scan");
+		conf.setBoolean("map.input.index.lazy.build", true);
+		conf.setBoolean("mapred.job.precise", true);
+		return true;
+	}
+
+	public static boolean isBuilding(Configuration conf) {
+		return conf.getBoolean("map.input.index.lazy.build", false);
+	}
+
+	/**
+	 * The configuration an extractor builds with: during a lazy build its index fields are the
+	 * lazy fields, otherwise conf itself.
+	 */
+	public static Configuration getBuildConf(Configuration conf) {
+		if(!isBuilding(conf)){
+			return conf;
+		}
+		Configuration buildConf = new Configuration(conf);
+		buildConf.set("map.input.index.fields", conf.get("map.input.index.lazy.fields", "0"));
+		return buildConf;
+	}
+
+	/**
+	 * The index files the lazy build writes, one per lazy field.
+	 */
+	private static Set<String> getBuiltFiles(Configuration conf) {
+		Set<String> files = new HashSet<String>();
+		int numFields = conf.get("map.input.index.lazy.fields", "0").split("-").length;
+		for(int i = 0; i < numFields; i++){
+			files.add(String.format("part-r-%05d", i));
+		}
+		return files;
+	}
+
+	/**
+	 * Only the index files the lazy build can produce are checked; a missing file it would not
+	 * write is left to the query to report.
+	 */
+	private static boolean isMissing(Configuration conf) throws IOException {
+		FileSystem fs = FileSystem.get(conf);
+		String index = INDEX_PARENT + conf.get("map.input.table.name", "") + "/";
+		Set<String> built = getBuiltFiles(conf);
+		String where = conf.get("map.input.where.clause");
+		if(where != null){
+			for(String wherekey : where.split(Pattern.quote(","))){
+				String file = wherekey.split(Pattern.quote("="))[0];
+				if(built.contains(file) && !fs.exists(new Path(index + file))){
+					return true;
+				}
+			}
+		}
+		String groupBy = conf.get("map.input.groupby.clause");
+		return groupBy != null && built.contains(groupBy) && !fs.exists(new Path(index + groupBy));
+	}
+
+	/**
+	 * The extractor of a map task of the scan, writing to a side file of the task that is
+	 * committed with the task output.
+	 */
+	public static IndexMapper start(Mapper<?, ?, ?, ?>.Context context) throws IOException, InterruptedException {
+		Configuration conf = context.getConfiguration();
+		IndexMapper builder = (IndexMapper)ReflectionUtils.newInstance(
+			conf.getClass("map.input.index.lazy.extractor", IndexMapper.class), conf);
+		Path side = new Path(FileOutputFormat.getWorkOutputPath(context),
+			SIDE_PREFIX + String.format("%05d", context.getTaskAttemptID().getTaskID().getId()));
+		builder.setSideOutput(new PrintWriter(side.getFileSystem(conf).create(side)));
+		builder.setup(asIndexContext(context));
+		return builder;
+	}
+
+	public static void add(IndexMapper builder, Mapper<?, ?, ?, ?>.Context context) throws IOException, InterruptedException {
+		builder.map((LongWritable)context.getCurrentKey(), (Text)context.getCurrentValue(), asIndexContext(context));
+	}
+
+	public static void finish(IndexMapper builder, Mapper<?, ?, ?, ?>.Context context) throws IOException, InterruptedException {
+		builder.finish(asIndexContext(context));
+		builder.getSideOutput().close();
+	}
+
+	/**
+	 * The extractor writes to its side file only, so the output types of the scan do not matter.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Mapper<LongWritable, Text, Text, Text>.Context asIndexContext(Mapper<?, ?, ?, ?>.Context context) {
+		return (Mapper<LongWritable, Text, Text, Text>.Context)context;
+	}
+
+	/**
+	 * Sort the side files of a finished scan into the index of the table, replacing the
+	 * index files of the lazy fields that already exist since they may predate the data just
+	 * scanned, and remove the side files from the query output.
+	 */
+	public static boolean commit(Configuration conf, String output) throws Exception {
+		FileSystem fs = FileSystem.get(conf);
+		String table = INDEX_PARENT + conf.get("map.input.table.name", "");
+		int numFields = conf.get("map.input.index.lazy.fields", "0").split("-").length;
+		Path sorted = new Path(table + "_lazy");
+		Configuration indexConf = getBuildConf(conf);
+		indexConf.setInt("map.input.index.reducers.per.field", 1);
+
+		Job job = new Job(indexConf, "Commit lazy index");
+		job.setJarByClass(LazyIndex.class);
+		job.setNumReduceTasks(numFields);
+		job.setMapperClass(SideFileMapper.class);
+		job.setReducerClass(IndexReducer.class);
+
+		job.setMapOutputKeyClass(Text.class);
+		job.setMapOutputValueClass(Text.class);
+		job.setOutputKeyClass(NullWritable.class);
+		job.setOutputValueClass(Text.class);
+
+		job.setPartitionerClass(IndexPartitioner.class);
+
+		job.setInputFormatClass(TextInputFormat.class);
+
+		FileInputFormat.setInputPaths(job, new Path(output, SIDE_PREFIX + "*"));
+		FileOutputFormat.setOutputPath(job, sorted);
+		boolean success = job.waitForCompletion(true);
+		if(success){
+			fs.mkdirs(new Path(table));
+			for(int i = 0; i < numFields; i++){
+				String name = String.format("part-r-%05d", i);
+				Path field = new Path(table, name);
+				if(fs.exists(field)){
+					fs.delete(field, true);
+				}
+				fs.rename(new Path(sorted, name), field);
+			}
+		}
+		fs.delete(sorted, true);
+		for(FileStatus side : fs.globStatus(new Path(output, SIDE_PREFIX + "*"))){
+			fs.delete(side.getPath(), false);
+		}
+		return success;
+	}
+
+	/**
+	 * Split the "key\tvalue" lines of the side files back into index map output.
+	 */
+	public static class SideFileMapper extends Mapper<LongWritable, Text, Text, Text> {
+		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			String line = value.toString();
+			int tab = line.lastIndexOf('\t');
+			context.write(new Text(line.substring(0, tab)), new Text(line.substring(tab + 1)));
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package org.apache.hadoop.mapreduce.approx.index;
+
+import java.lang.Exception;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+
+/**
+ * Rewrite a table so records with the same values of the clustering fields are stored
+ * together, then build the segment index of the rewritten table.
+ * Selective subsets end up in few segments, so the sampler reads fewer bytes per
+ * matching record.
+ * The rewritten table is left as the part files of the rewrite, one per reducer, so no
+ * single task or the driver copies the whole table.
+ */
+public class Reorganize {
+
+	public static void main(String[] args) throws Exception {
+		Configuration conf = new Configuration();
+		// Parsing options
+		String[] otherArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+		Options options = new Options();
+		options.addOption("s", "segment", true, "segment size");
+		options.addOption("b", "bytes", true, "segment size in bytes");
+		options.addOption("k", "offsets", true, "record the offset of every k-th record of a segment");
+		options.addOption("d", "delimiter", true, "fields delimiter");
+		options.addOption("f", "fields", true, "fields to compute histogram, ex. 0-2-4, 0th,2th,4th field");
+		options.addOption("c", "cluster", true, "fields to cluster records on, default the index fields");
+		options.addOption("z", "zorder", false, "z-order the clustering fields instead of sorting on them");
+		options.addOption("m", "mapper", true, "index mapper of the dataset, ex. IndexGitHubMapper");
+		options.addOption("r", "reducers", true, "reducers of the rewrite");
+		options.addOption("i", "input",    true,  "Input file");
+		options.addOption("o", "output",   true,  "Output directory of the reorganized table");
+		options.addOption("t", "table",   true,  "table name");
+
+		try {
+			CommandLine cmdline = new GnuParser().parse(options, otherArgs);
+			String input  = cmdline.getOptionValue("i");
+			String output = cmdline.getOptionValue("o");
+			String table = cmdline.getOptionValue("t");
+			String index = "/index/table/"+table;
+			int numReducer = 1;
+			int numRewriter = 1;
+			if (input == null || output == null || table == null) {
+				throw new ParseException("No input/output/table option");
+			}
+			if(cmdline.hasOption("s")) {
+				conf.setLong("map.input.segment.size", Long.parseLong(cmdline.getOptionValue("s")));
+			}
+			if(cmdline.hasOption("b")) {
+				conf.setLong("map.input.segment.bytes", Long.parseLong(cmdline.getOptionValue("b")));
+			}
+			int rowInterval = 0;
+			if(cmdline.hasOption("k")) {
+				rowInterval = Integer.parseInt(cmdline.getOptionValue("k"));
+				conf.setInt("map.input.index.row.interval", rowInterval);
+			}
+			if(cmdline.hasOption("d")) {
+				conf.set("map.input.delimiter", cmdline.getOptionValue("d"));
+			}
+			if(cmdline.hasOption("f")) {
+				conf.set("map.input.index.fields", cmdline.getOptionValue("f"));
+				numReducer = cmdline.getOptionValue("f").split("-").length;
+			}
+			if(cmdline.hasOption("c")) {
+				conf.set("map.input.reorganize.fields", cmdline.getOptionValue("c"));
+			}
+			if(cmdline.hasOption("z")) {
+				conf.setBoolean("map.input.reorganize.zorder", true);
+			}
+			if(cmdline.hasOption("r")) {
+				numRewriter = Integer.parseInt(cmdline.getOptionValue("r"));
+			}
+			Class<? extends IndexMapper> mapperClass = IndexMapper.class;
+			if(cmdline.hasOption("m")) {
+				String name = cmdline.getOptionValue("m");
+				if(name.indexOf('.') < 0){
+					name = Reorganize.class.getPackage().getName() + "." + name;
+				}
+				mapperClass = Class.forName(name).asSubclass(IndexMapper.class);
+			}
+			conf.setClass("map.input.reorganize.extractor", mapperClass, IndexMapper.class);
+
+			// rewrite the table clustered on the fields
+			Job job = new Job(conf, "Reorganize table");
+			job.setJarByClass(Reorganize.class);
+			job.setNumReduceTasks(numRewriter);
+			job.setMapperClass(ReorganizeMapper.class);
+			job.setReducerClass(ReorganizeReducer.class);
+
+			job.setMapOutputKeyClass(Text.class);
+			job.setMapOutputValueClass(Text.class);
+			job.setOutputKeyClass(NullWritable.class);
+			job.setOutputValueClass(Text.class);
+
+			job.setInputFormatClass(TextInputFormat.class);
+
+			FileInputFormat.setInputPaths(job,   new Path(input));
+			FileOutputFormat.setOutputPath(job, new Path(output));
+			if(!job.waitForCompletion(true)){
+				System.exit(1);
+			}
+
+			// index the rewritten table
+			if(rowInterval > 0) {
+				numReducer++;
+			}
+			Job indexJob = new Job(conf, "Build histogram");
+			indexJob.setJarByClass(Reorganize.class);
+			indexJob.setNumReduceTasks(numReducer);
+			indexJob.setMapperClass(mapperClass);
+			indexJob.setReducerClass(IndexReducer.class);
+
+			indexJob.setMapOutputKeyClass(Text.class);
+			indexJob.setMapOutputValueClass(Text.class);
+			indexJob.setOutputKeyClass(NullWritable.class);
+			indexJob.setOutputValueClass(Text.class);
+
+			indexJob.setPartitionerClass(IndexPartitioner.class);
+
+			indexJob.setInputFormatClass(TextInputFormat.class);
+
+			FileInputFormat.setInputPaths(indexJob,   new Path(output));
+			FileOutputFormat.setOutputPath(indexJob, new Path(index));
+			boolean success = indexJob.waitForCompletion(true);
+			if(success && rowInterval > 0) {
+				FileSystem fs = FileSystem.get(conf);
+				fs.rename(new Path(index, String.format("part-r-%05d", numReducer - 1)), new Path(index, IndexMapper.OFFSETS));
+			}
+			System.exit(success ? 0 : 1);
+
+		} catch (ParseException exp){
+			System.err.println("Error parsing command line: " + exp.getMessage());
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(Reorganize.class.toString(), options);
+			ToolRunner.printGenericCommandUsage(System.out);
+			System.exit(2);
+		}
+	}
+
+}
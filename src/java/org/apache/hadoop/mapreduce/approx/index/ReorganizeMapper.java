@@ -0,0 +1,96 @@
+package org.apache.hadoop.mapreduce.approx.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Key every record by the values of the clustering fields, so the shuffle brings
+ * records with the same values together.
+ * The values come from the keyword extractor of an index mapper
+ * (map.input.reorganize.extractor) applied to map.input.reorganize.fields.
+ * With map.input.reorganize.zorder the key is the bit interleaving of 16 bit hashes
+ * of the values instead of their concatenation, so no field dominates the layout.
+ */
+public class ReorganizeMapper extends Mapper<LongWritable, Text, Text, Text>{
+
+	private IndexMapper extractor;
+	private List<List<String>> keywords;
+	private int numFields;
+	private boolean zorder;
+
+	public void setup(Context context
+                       ) throws IOException, InterruptedException {
+		Configuration conf = new Configuration(context.getConfiguration());
+		conf.set("map.input.index.fields", conf.get("map.input.reorganize.fields", conf.get("map.input.index.fields", "0")));
+		zorder = conf.getBoolean("map.input.reorganize.zorder", false);
+		extractor = (IndexMapper)ReflectionUtils.newInstance(
+			conf.getClass("map.input.reorganize.extractor", IndexMapper.class), conf);
+		extractor.configure(conf);
+		numFields = conf.get("map.input.index.fields").split("-").length;
+		keywords = new ArrayList<List<String>>(numFields);
+		for(int i = 0; i < numFields; i++){
+			keywords.add(new ArrayList<String>());
+		}
+	}
+
+	public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+		for(List<String> fieldKeywords : keywords){
+			fieldKeywords.clear();
+		}
+		String[] values = new String[numFields];
+		if(extractor.getKeywords(value, keywords)){
+			for(int i = 0; i < numFields; i++){
+				values[i] = keywords.get(i).isEmpty() ? "" : keywords.get(i).get(0);
+			}
+		}else{
+			for(int i = 0; i < numFields; i++){
+				values[i] = "";
+			}
+		}
+		context.write(new Text(zorder ? getZValue(values) : getSortKey(values)), value);
+	}
+
+	private static String getSortKey(String[] values) {
+		StringBuilder sortKey = new StringBuilder();
+		for(String value : values){
+			sortKey.append(value).append('\u0001');
+		}
+		return sortKey.toString();
+	}
+
+	/**
+	 * Interleave the bits of the hashed values, most significant first, as a hex string.
+	 */
+	private static String getZValue(String[] values) {
+		int[] hashes = new int[values.length];
+		for(int i = 0; i < values.length; i++){
+			int h = values[i].hashCode();
+			hashes[i] = (h ^ (h >>> 16)) & 0xffff;
+		}
+		StringBuilder zvalue = new StringBuilder();
+		int nibble = 0;
+		int bits = 0;
+		for(int bit = 15; bit >= 0; bit--){
+			for(int i = 0; i < hashes.length; i++){
+				nibble = (nibble << 1) | ((hashes[i] >>> bit) & 1);
+				bits++;
+				if(bits == 4){
+					zvalue.append(Character.forDigit(nibble, 16));
+					nibble = 0;
+					bits = 0;
+				}
+			}
+		}
+		if(bits > 0){
+			zvalue.append(Character.forDigit(nibble << (4 - bits), 16));
+		}
+		return zvalue.toString();
+	}
+}
@@ -94,6 +94,23 @@ public class SampleFileSplit extends InputSplit implements Writable {
     return start.length;
   }
 
+  /**
+   * One past the last segment of the read run starting at segment i: the following
+   * segments join it while at most gap bytes lie between them, and a negative gap
+   * keeps every segment on its own.
+   */
+  public int getRunEnd(int i, long gap){
+    int end = i + 1;
+    if(gap < 0){
+      return end;
+    }
+    while(end < start.length && start[end] >= start[end - 1] + length[end - 1]
+        && start[end] - (start[end - 1] + length[end - 1]) <= gap){
+      end++;
+    }
+    return end;
+  }
+
   //*************************************************need modification*********************************
   @Override
   public String toString() { return file + ":" + start.length + "+" + length.length; }
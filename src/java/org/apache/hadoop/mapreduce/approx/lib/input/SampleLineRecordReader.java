@@ -35,7 +35,11 @@ public class SampleLineRecordReader extends RecordReader<LongWritable, Text> {
 	public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
 		this.sampleFileSplit = (SampleFileSplit) split;
 		// 处理SampleFileSplit中的一个小文件Block，因为使用LineRecordReader，需要构造一个FileSplit对象，然后才能够读取数据
-		FileSplit fileSplit = new FileSplit(sampleFileSplit.getPath(), sampleFileSplit.getOffset(currentIndex), sampleFileSplit.getLength(currentIndex)-1, sampleFileSplit.getLocations());
+		// a run of nearby segments is read in one pass, see SampleRecordReader
+		int runEnd = sampleFileSplit.getRunEnd(currentIndex, SampleRecordReader.getReadGap(context.getConfiguration()));
+		long start = sampleFileSplit.getOffset(currentIndex);
+		long length = sampleFileSplit.getOffset(runEnd - 1) + sampleFileSplit.getLength(runEnd - 1) - start;
+		FileSplit fileSplit = new FileSplit(sampleFileSplit.getPath(), start, length-1, sampleFileSplit.getLocations());
 		lineRecordReader.initialize(fileSplit, context);
 
 		//this.paths = sampleFileSplit.getPaths();
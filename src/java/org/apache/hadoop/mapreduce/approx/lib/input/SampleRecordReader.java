@@ -23,6 +23,7 @@ import java.lang.reflect.*;
 import java.util.regex.Pattern;
 
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.*;
 import org.apache.hadoop.classification.InterfaceAudience;
@@ -41,6 +42,10 @@ import org.apache.hadoop.mapreduce.approx.lib.input.SampleFileSplit;
  * A SampleFileSplit can combine data chunks from multiple files. 
  * This class allows using different RecordReaders for processing
  * these data chunks from different files.
+ * With a {@link SampleLineRecordReader} segments at most map.input.sample.read.gap
+ * bytes apart (default 0, only adjacent ones; -1 reads every segment on its own) are
+ * read as one run with one open and one sequential read; the records are mapped back
+ * to their segments by offset for the cluster ids and the ones in the gaps skipped.
  * @see SampleFileSplit
  */
 @InterfaceAudience.Public
@@ -60,6 +65,10 @@ public class SampleRecordReader<K, V> extends RecordReader<K, V> {
   
   protected int idx;
   protected long progress;
+  // segments of the current run are [runStart, idx), the current record is in cluster
+  protected int runStart;
+  protected int cluster;
+  protected long gap;
   protected RecordReader<K, V> curReader;
   protected String[] whereKeys;
   protected JSONParser parser;
@@ -86,7 +95,7 @@ public class SampleRecordReader<K, V> extends RecordReader<K, V> {
         e.printStackTrace();
       }
       //LOG.info(currentValue);
-      String[] keys = this.split.getKeys(idx-1).split(Pattern.quote("*+*"));
+      String[] keys = this.split.getKeys(getCurrentClusterID()).split(Pattern.quote("*+*"));
       for(String key : keys){
       	//*************************************************************************fields separator**********************
         String[] fields = key.split(Pattern.quote("+*+"));
@@ -138,29 +147,41 @@ public class SampleRecordReader<K, V> extends RecordReader<K, V> {
   }
 
   public boolean nextKeyValueOrg() throws IOException, InterruptedException {
-
-    while ((curReader == null) || !curReader.nextKeyValue()) {
-      if (!initNextRecordReader()) {
-        //LOG.info("next:false");
-        return false;
-      }
-    }
-    //LOG.info("next:true");
-    return true;
+    return nextKeyValue();
   }
 
   public boolean nextKeyValue() throws IOException, InterruptedException {
 
-    while ((curReader == null) || !curReader.nextKeyValue()) {
-      if (!initNextRecordReader()) {
-        //LOG.info("next:false");
-        return false;
+    while (true) {
+      while ((curReader == null) || !curReader.nextKeyValue()) {
+        if (!initNextRecordReader()) {
+          //LOG.info("next:false");
+          return false;
+        }
+      }
+      if (idx - runStart == 1 || locate(((LongWritable)curReader.getCurrentKey()).get())) {
+        break;
       }
     }
     //LOG.info("next:true");
     return true;
   }
 
+  /**
+   * Move the cluster to the segment of the run holding the record at position.
+   * @return false if the record lies in a gap between two segments
+   */
+  private boolean locate(long position) {
+    while (cluster + 1 < idx && position >= split.getOffset(cluster + 1)) {
+      cluster++;
+    }
+    return position < split.getOffset(cluster) + split.getLength(cluster);
+  }
+
+  public static long getReadGap(Configuration conf) {
+    return conf.getLong("map.input.sample.read.gap", 0);
+  }
+
   public K getCurrentKey() throws IOException, InterruptedException {
     return curReader.getCurrentKey();
   }
@@ -173,7 +194,7 @@ public class SampleRecordReader<K, V> extends RecordReader<K, V> {
   
 
   public int getCurrentClusterID(){
-  	return idx-1;
+  	return cluster;
   }
 
   public String getCurrentSegKeys(int segid){
@@ -194,7 +215,7 @@ public class SampleRecordReader<K, V> extends RecordReader<K, V> {
     long subprogress = 0;    // bytes processed in current split
     if (null != curReader) {
       // idx is always one past the current subsplit's true index.
-      subprogress = (long)(curReader.getProgress() * split.getLength(idx - 1));
+      subprogress = (long)(curReader.getProgress() * getRunLength());
     }
     return Math.min(1.0f,  (progress + subprogress)/(float)(split.getLength()));
   }
@@ -213,6 +234,8 @@ public class SampleRecordReader<K, V> extends RecordReader<K, V> {
     this.idx = 0;
     this.curReader = null;
     this.progress = 0;
+    // only line readers know how to read a run
+    this.gap = SampleLineRecordReader.class.isAssignableFrom(rrClass) ? getReadGap(context.getConfiguration()) : -1;
 
     try {
       rrConstructor = rrClass.getDeclaredConstructor(constructorSignature);
@@ -233,7 +256,7 @@ public class SampleRecordReader<K, V> extends RecordReader<K, V> {
       curReader.close();
       curReader = null;
       if (idx > 0) {
-        progress += split.getLength(idx-1);    // done processing so far
+        progress += getRunLength();    // done processing so far
       }
     }
 
@@ -247,8 +270,9 @@ public class SampleRecordReader<K, V> extends RecordReader<K, V> {
       Configuration conf = context.getConfiguration();
       // setup some helper config variables.
       conf.set("map.input.file", split.getPath().toString());
+      int runEnd = split.getRunEnd(idx, gap);
       conf.setLong("map.input.start", split.getOffset(idx));
-      conf.setLong("map.input.length", split.getLength(idx));
+      conf.setLong("map.input.length", split.getOffset(runEnd - 1) + split.getLength(runEnd - 1) - split.getOffset(idx));
 
       curReader =  rrConstructor.newInstance(new Object [] 
                             {split, context, Integer.valueOf(idx)});
@@ -258,10 +282,16 @@ public class SampleRecordReader<K, V> extends RecordReader<K, V> {
         // we're responsible for initializing subsequent RecordReaders.
         curReader.initialize(split, context);
       }
+      runStart = idx;
+      cluster = idx;
+      idx = runEnd;
     } catch (Exception e) {
       throw new RuntimeException (e);
     }
-    idx++;
     return true;
   }
+
+  private long getRunLength() {
+    return split.getOffset(idx - 1) + split.getLength(idx - 1) - split.getOffset(runStart);
+  }
 }
@@ -30,7 +30,6 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Arrays;
 
-import org.apache.commons.lang3.ArrayUtils;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
@@ -238,7 +237,7 @@ public abstract class SampleTextInputFormat<K, V> extends FileInputFormat<K, V>{
           validBlocks.add(oneblock);
           blockToNodes.remove(oneblock);
           //*******************************************segments compose splits****************
-          curSplitSize += oneblock.length;
+          curSplitSize += oneblock.cost;
           if(blockunit){
             addCreatedSplit1(splits, validBlocks);
             curSplitSize = 0;
@@ -305,7 +304,7 @@ public abstract class SampleTextInputFormat<K, V> extends FileInputFormat<K, V>{
           if (blockToNodes.containsKey(oneblock)) {
             validBlocks.add(oneblock);
             blockToNodes.remove(oneblock);
-            curSplitSize += oneblock.length;
+            curSplitSize += oneblock.cost;
       
             // if the accumulated split size exceeds the maximum, then 
             // create this split.
@@ -352,7 +351,7 @@ public abstract class SampleTextInputFormat<K, V> extends FileInputFormat<K, V>{
     // Process all overflow blocks
     for (OneBlockInfo oneblock : overflowBlocks) {
       validBlocks.add(oneblock);
-      curSplitSize += oneblock.length;
+      curSplitSize += oneblock.cost;
 
       // This might cause an exiting rack location to be re-added,
       // but it should be ok.
@@ -391,9 +390,12 @@ public abstract class SampleTextInputFormat<K, V> extends FileInputFormat<K, V>{
                                    oneblockinfo.segWeights,
                                    oneblockinfo.hosts);
     splitList.add(thissplit); 
+    if (!LOG.isDebugEnabled()) {
+      return;
+    }
     int index = splitList.size()-1;
     for(int i = 0; i < oneblockinfo.segOffset.length; i++){
-      LOG.info("split:"+ String.valueOf(index) + " segment:" 
+      LOG.debug("split:"+ String.valueOf(index) + " segment:" 
         + String.valueOf(i) + " offset:" + String.valueOf(oneblockinfo.segOffset[i]) 
         + " length:" + String.valueOf(oneblockinfo.segLength[i])
         + " key:" + oneblockinfo.segKeys[i]);
@@ -407,16 +409,24 @@ public abstract class SampleTextInputFormat<K, V> extends FileInputFormat<K, V>{
                                ArrayList<OneBlockInfo> validBlocks) {
     // create an input split
     Path fl = validBlocks.get(0).onepath;
-    long[] offset = null;
-    long[] length = null;
-    String[] key = null;
-    String[] weight = null;
-    for (int i = 0; i < validBlocks.size(); i++) {
+    // sized once and filled with one copy per block, linear in the segments
+    int numSegments = 0;
+    for (OneBlockInfo oneblock : validBlocks) {
+      numSegments += oneblock.segOffset.length;
+    }
+    long[] offset = new long[numSegments];
+    long[] length = new long[numSegments];
+    String[] key = new String[numSegments];
+    String[] weight = new String[numSegments];
+    int pos = 0;
+    for (OneBlockInfo oneblock : validBlocks) {
       //fl[i] = validBlocks.get(i).onepath; 
-      offset = ArrayUtils.addAll(offset, validBlocks.get(i).segOffset);
-      length = ArrayUtils.addAll(length, validBlocks.get(i).segLength);
-      key = ArrayUtils.addAll(key, validBlocks.get(i).segKeys);
-      weight = ArrayUtils.addAll(weight, validBlocks.get(i).segWeights);
+      int n = oneblock.segOffset.length;
+      System.arraycopy(oneblock.segOffset, 0, offset, pos, n);
+      System.arraycopy(oneblock.segLength, 0, length, pos, n);
+      System.arraycopy(oneblock.segKeys, 0, key, pos, n);
+      System.arraycopy(oneblock.segWeights, 0, weight, pos, n);
+      pos += n;
     }
 
 
@@ -427,9 +437,12 @@ public abstract class SampleTextInputFormat<K, V> extends FileInputFormat<K, V>{
                                    weight,
                                    locations.toArray(new String[0]));
     splitList.add(thissplit); 
+    if (!LOG.isDebugEnabled()) {
+      return;
+    }
     int index = splitList.size()-1;
     for(int i = 0; i < offset.length; i++){
-      LOG.info("split:"+ String.valueOf(index) + " segment:" 
+      LOG.debug("split:"+ String.valueOf(index) + " segment:" 
         + String.valueOf(i) + " offset:" + String.valueOf(offset[i]) 
         + " length:" + String.valueOf(length[i])
         + " key:" + key[i]);
@@ -471,7 +484,9 @@ public abstract class SampleTextInputFormat<K, V> extends FileInputFormat<K, V>{
                                                            stat.getLen());
 			// get all sample segments
 
+      double recordCost = Double.parseDouble(conf.get("map.input.split.cost.record", "0"));
       SegmentsMap smap = new SegmentsMap(conf, path);
+      smap.setLocations(locations);
       Segment[] sampleSegList = smap.getSampleSegmentsList();
       LOG.info("sampled segments:" + String.valueOf(sampleSegList.length));
       // create a list of all block and their locations
@@ -488,41 +503,52 @@ public abstract class SampleTextInputFormat<K, V> extends FileInputFormat<K, V>{
         } else {
           ArrayList<OneBlockInfo> blocksList = new ArrayList<OneBlockInfo>(
               locations.length);
-          for (int i = 0, j= 0; i < locations.length; i++) {
+          int j = 0;
+          for (int i = 0; i < locations.length; i++) {
             fileSize += locations[i].getLength();
             //**************************segments to block*************************************
             // each split can be a maximum of maxSize
             long blklength = locations[i].getLength();
             long blkOffset = locations[i].getOffset();
-            long[] segmentOffsets = null;
-            long[] segmentLengths = null;
-            ArrayList<String> segmentKeys = new ArrayList<String>();
-            ArrayList<String> segmentWeights = new ArrayList<String>();
             int k = j;
-            while(j < sampleSegList.length && sampleSegList[j].getOffset() >= blkOffset && sampleSegList[j].getOffset() < blkOffset + blklength){
-            	segmentOffsets = ArrayUtils.addAll(segmentOffsets ,new long[]{sampleSegList[j].getOffset()});
-            	segmentLengths = ArrayUtils.addAll(segmentLengths ,new long[]{sampleSegList[j].getLength()});
-              segmentKeys.add(sampleSegList[j].getKeys());
-              segmentWeights.add(sampleSegList[j].getWeights());
+            // a segment goes with the block its first record starts in; the block ordinal of the
+            // index is not used since the file may have been rewritten with other block sizes
+            while(j < sampleSegList.length && sampleSegList[j].getOffset() >= blkOffset
+                && sampleSegList[j].getOffset() < blkOffset + blklength){
             	j++;
             }
             if(j == k){
               continue;
             }
-          	long[] myOffset = segmentOffsets;
-          	long[] myLength = segmentLengths;
-            String[] mykey = segmentKeys.toArray(new String[segmentKeys.size()]);
-            String[] myweight = segmentWeights.toArray(new String[segmentWeights.size()]);
+            // the segments of the block are the range [k, j) of the sorted list
+          	long[] myOffset = new long[j - k];
+          	long[] myLength = new long[j - k];
+            String[] mykey = new String[j - k];
+            String[] myweight = new String[j - k];
+            long records = 0;
+            for (int s = k; s < j; s++) {
+              records += sampleSegList[s].getMatchingRecords();
+              myOffset[s - k] = sampleSegList[s].getOffset();
+              myLength[s - k] = sampleSegList[s].getLength();
+              mykey[s - k] = sampleSegList[s].getKeys();
+              myweight[s - k] = sampleSegList[s].getWeights();
+            }
 
             //******************************************add segment info*************************
             OneBlockInfo oneblock = new OneBlockInfo(path, myOffset,
                 myLength, mykey, myweight, locations[i].getHosts(), locations[i]
                     .getTopologyPaths());
+            // map time goes with the matching records, each parsed and emitted, as well as the bytes
+            oneblock.cost = oneblock.length + Math.round(recordCost * records);
             //left -= myLength;
             //myOffset += myLength;
 
             blocksList.add(oneblock);
           }
+          if (j < sampleSegList.length) {
+            LOG.warn(String.valueOf(sampleSegList.length - j) + " sampled segments of " + path
+                + " start past its end at " + String.valueOf(fileSize) + ", the index does not match the file");
+          }
           blocks = blocksList.toArray(new OneBlockInfo[blocksList.size()]);
         }
 
@@ -587,6 +613,7 @@ public abstract class SampleTextInputFormat<K, V> extends FileInputFormat<K, V>{
     String[] segWeights;
     String[] segKeys;
     long length;                 // length of this block
+    long cost;                   // length plus map.input.split.cost.record per matching record
     String[] hosts;              // nodes on which this block resides
     String[] racks;              // network topology of hosts
 
@@ -602,6 +629,7 @@ public abstract class SampleTextInputFormat<K, V> extends FileInputFormat<K, V>{
       for(long onelen : len){
       	this.length += onelen;
       }
+      this.cost = this.length;
       assert (hosts.length == topologyPaths.length ||
               topologyPaths.length == 0);
 
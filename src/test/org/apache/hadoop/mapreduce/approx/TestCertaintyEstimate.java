@@ -0,0 +1,110 @@
+package org.apache.hadoop.mapreduce.approx;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+/**
+ * Exact expectations of the estimates with a take-all stratum over every ordered pair of
+ * draws with replacement from a fixed list of segments.
+ */
+public class TestCertaintyEstimate {
+
+	// segments 0 and 1 are taken for certain, the others drawn with probability PROBS
+	private static final double[] CERTAIN_TOTALS = {500.0, 320.0};
+	private static final double[] TOTALS = {12.0, 0.0, 30.0, 45.0};
+	private static final double[] PROBS = {0.1, 0.2, 0.3, 0.4};
+
+	private ApproximateReducer<Text, Text, Text, DoubleWritable> getReducer() {
+		ApproximateReducer<Text, Text, Text, DoubleWritable> reducer =
+			new ApproximateReducer<Text, Text, Text, DoubleWritable>() { };
+		reducer.approxConf = new Configuration(false);
+		reducer.approxConf.set("map.input.sampling.certainty", "0.5");
+		reducer.approxConf.set("mapred.sampling.app", "total");
+		return reducer;
+	}
+
+	private double[] estimate(ApproximateReducer<Text, Text, Text, DoubleWritable> reducer, int[] draws) {
+		reducer.ti = new ArrayList<Double>();
+		reducer.wi = new ArrayList<Double>();
+		reducer.ci = new ArrayList<Boolean>();
+		reducer.mi = new ArrayList<Long>();
+		for (double t : CERTAIN_TOTALS) {
+			reducer.ti.add(t);
+			// the weight the reducer gives a cluster of weight SegmentsMap.CERTAIN
+			reducer.wi.add(1.0);
+			reducer.ci.add(true);
+			reducer.mi.add(1L);
+		}
+		for (int j : draws) {
+			reducer.ti.add(TOTALS[j]);
+			reducer.wi.add(PROBS[j]);
+			reducer.ci.add(false);
+			reducer.mi.add(1L);
+		}
+		return reducer.estimateCurrentResult();
+	}
+
+	@Test
+	public void testTotalUnbiased() {
+		ApproximateReducer<Text, Text, Text, DoubleWritable> reducer = getReducer();
+		double total = 0.0, drawn = 0.0;
+		for (double t : CERTAIN_TOTALS) {
+			total += t;
+		}
+		for (double t : TOTALS) {
+			drawn += t;
+		}
+		total += drawn;
+		// variance of the mean of two draws of t/p
+		double variance = 0.0;
+		for (int j = 0; j < TOTALS.length; j++) {
+			variance += PROBS[j] * Math.pow(TOTALS[j] / PROBS[j] - drawn, 2);
+		}
+		variance = variance / 2;
+		double mean = 0.0, meanSquare = 0.0, meanVariance = 0.0;
+		for (int a = 0; a < TOTALS.length; a++) {
+			for (int b = 0; b < TOTALS.length; b++) {
+				double p = PROBS[a] * PROBS[b];
+				double[] result = estimate(reducer, new int[] {a, b});
+				double std = result[1] / reducer.tscore;
+				mean += p * result[0];
+				meanSquare += p * result[0] * result[0];
+				meanVariance += p * std * std;
+			}
+		}
+		assertEquals(total, mean, 1e-9);
+		assertEquals(variance, meanSquare - mean * mean, 1e-9);
+		assertEquals(variance, meanVariance, 1e-9);
+	}
+
+	/**
+	 * A draw of probability 1.0 is still a draw, not a certain cluster.
+	 */
+	@Test
+	public void testDrawOfProbabilityOne() {
+		ApproximateReducer<Text, Text, Text, DoubleWritable> reducer = getReducer();
+		reducer.ti = new ArrayList<Double>();
+		reducer.wi = new ArrayList<Double>();
+		reducer.ci = new ArrayList<Boolean>();
+		reducer.mi = new ArrayList<Long>();
+		reducer.ti.add(100.0);
+		reducer.wi.add(1.0);
+		reducer.ci.add(true);
+		reducer.mi.add(1L);
+		for (int i = 0; i < 2; i++) {
+			reducer.ti.add(8.0);
+			reducer.wi.add(1.0);
+			reducer.ci.add(false);
+			reducer.mi.add(1L);
+		}
+		double[] result = reducer.estimateCurrentResult();
+		assertEquals(108.0, result[0], 1e-12);
+		assertEquals(0.0, result[1], 1e-12);
+	}
+}
@@ -0,0 +1,98 @@
+package org.apache.hadoop.mapreduce.approx;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+/**
+ * Exact expectations of the Poisson estimates over every sample of a fixed list of
+ * segments, each weighted by its probability.
+ */
+public class TestHorvitzThompson {
+
+	private static final double[] TOTALS = {12.0, 0.0, 7.5, 40.0, 3.0};
+	private static final long[] ROWS = {10, 4, 6, 30, 5};
+	private static final double[] PROBS = {0.2, 0.5, 0.75, 0.9, 1.0};
+
+	private ApproximateReducer<Text, Text, Text, DoubleWritable> getReducer(String app) {
+		ApproximateReducer<Text, Text, Text, DoubleWritable> reducer =
+			new ApproximateReducer<Text, Text, Text, DoubleWritable>() { };
+		reducer.approxConf = new Configuration(false);
+		reducer.approxConf.setBoolean("map.input.sampling.poisson", true);
+		reducer.approxConf.set("mapred.sampling.app", app);
+		return reducer;
+	}
+
+	/**
+	 * Estimate of the sample holding the segments of the bits of mask.
+	 */
+	private double[] estimate(ApproximateReducer<Text, Text, Text, DoubleWritable> reducer, int mask, double[] probs) {
+		reducer.ti = new ArrayList<Double>();
+		reducer.wi = new ArrayList<Double>();
+		reducer.ci = new ArrayList<Boolean>();
+		reducer.mi = new ArrayList<Long>();
+		for (int i = 0; i < TOTALS.length; i++) {
+			if ((mask & (1 << i)) != 0) {
+				reducer.ti.add(TOTALS[i]);
+				reducer.wi.add(probs[i]);
+				reducer.ci.add(false);
+				reducer.mi.add(ROWS[i]);
+			}
+		}
+		return reducer.estimateCurrentResult();
+	}
+
+	private double getProbability(int mask) {
+		double p = 1.0;
+		for (int i = 0; i < PROBS.length; i++) {
+			p *= (mask & (1 << i)) != 0 ? PROBS[i] : 1 - PROBS[i];
+		}
+		return p;
+	}
+
+	@Test
+	public void testTotalUnbiased() {
+		ApproximateReducer<Text, Text, Text, DoubleWritable> reducer = getReducer("total");
+		double total = 0.0, variance = 0.0;
+		for (int i = 0; i < TOTALS.length; i++) {
+			total += TOTALS[i];
+			variance += (1 - PROBS[i]) * TOTALS[i] * TOTALS[i] / PROBS[i];
+		}
+		double mean = 0.0, meanSquare = 0.0, meanVariance = 0.0;
+		for (int mask = 0; mask < 1 << TOTALS.length; mask++) {
+			double p = getProbability(mask);
+			double[] result = estimate(reducer, mask, PROBS);
+			double std = result[1] / reducer.tscore;
+			mean += p * result[0];
+			meanSquare += p * result[0] * result[0];
+			meanVariance += p * std * std;
+		}
+		assertEquals(total, mean, 1e-9);
+		assertEquals(variance, meanSquare - mean * mean, 1e-9);
+		// the variance estimate is unbiased as well
+		assertEquals(variance, meanVariance, 1e-9);
+	}
+
+	/**
+	 * A census, every segment with probability 1, gives the exact average without error.
+	 */
+	@Test
+	public void testAverageOfCensus() {
+		ApproximateReducer<Text, Text, Text, DoubleWritable> reducer = getReducer("avg");
+		double[] census = new double[TOTALS.length];
+		double total = 0.0, rows = 0.0;
+		for (int i = 0; i < TOTALS.length; i++) {
+			census[i] = 1.0;
+			total += TOTALS[i];
+			rows += ROWS[i];
+		}
+		double[] result = estimate(reducer, (1 << TOTALS.length) - 1, census);
+		assertEquals(total / rows, result[0], 1e-12);
+		assertEquals(0.0, result[1], 1e-12);
+	}
+}
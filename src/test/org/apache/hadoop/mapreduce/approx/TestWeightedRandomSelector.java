@@ -0,0 +1,63 @@
+package org.apache.hadoop.mapreduce.approx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.mapreduce.approx.WeightedRandomSelector.WeightedItem;
+import org.junit.Test;
+
+public class TestWeightedRandomSelector {
+
+	private static final int DRAWS = 400000;
+
+	/**
+	 * Every item is drawn in proportion to its weight, items of weight 0 never.
+	 */
+	@Test
+	public void testProportionalToWeight() {
+		long[] weights = {1, 0, 2, 3, 4, 10};
+		List<WeightedItem<Integer>> items = new ArrayList<WeightedItem<Integer>>();
+		long sum = 0;
+		for (int i = 0; i < weights.length; i++) {
+			items.add(new WeightedItem<Integer>(weights[i], i));
+			sum += weights[i];
+		}
+		WeightedRandomSelector<Integer> selector = new WeightedRandomSelector<Integer>(items, new Random(42));
+		assertEquals(sum, selector.getRangeSize());
+		int[] counts = new int[weights.length];
+		for (int i = 0; i < DRAWS; i++) {
+			counts[selector.select().getItem().intValue()]++;
+		}
+		for (int i = 0; i < weights.length; i++) {
+			assertEquals("item " + i, (double)weights[i] / sum, (double)counts[i] / DRAWS, 0.005);
+		}
+	}
+
+	@Test
+	public void testSingleItem() {
+		List<WeightedItem<String>> items = new ArrayList<WeightedItem<String>>();
+		items.add(new WeightedItem<String>(0, "none"));
+		items.add(new WeightedItem<String>(7, "only"));
+		WeightedRandomSelector<String> selector = new WeightedRandomSelector<String>(items, new Random(1));
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("only", selector.select().getItem());
+		}
+	}
+
+	@Test
+	public void testNothingToSelect() {
+		List<WeightedItem<String>> items = new ArrayList<WeightedItem<String>>();
+		items.add(new WeightedItem<String>(0, "none"));
+		WeightedRandomSelector<String> selector = new WeightedRandomSelector<String>(items, new Random(1));
+		try {
+			selector.select();
+			fail("selected from items of weight 0");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
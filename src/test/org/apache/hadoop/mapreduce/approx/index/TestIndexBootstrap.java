@@ -0,0 +1,55 @@
+package org.apache.hadoop.mapreduce.approx.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+public class TestIndexBootstrap {
+
+	@Test
+	public void testNearestRead() {
+		boolean[] read = {false, true, false, false, true, false};
+		assertArrayEquals(new int[] {1, 1, 1, 4, 4, 4}, IndexBootstrap.getNearestRead(read));
+	}
+
+	@Test
+	public void testNearestReadTiesGoLower() {
+		boolean[] read = {true, false, true, false, false, false, true};
+		assertArrayEquals(new int[] {0, 0, 2, 2, 2, 6, 6}, IndexBootstrap.getNearestRead(read));
+	}
+
+	@Test
+	public void testNothingRead() {
+		int[] nearest = IndexBootstrap.getNearestRead(new boolean[3]);
+		assertArrayEquals(new int[] {-1, -1, -1}, nearest);
+	}
+
+	/**
+	 * The splits and the mappers compute the read windows apart, so they must agree.
+	 */
+	@Test
+	public void testReadWindows() {
+		Configuration conf = new Configuration(false);
+		conf.setFloat("map.input.index.quick.fraction", 0.25f);
+		boolean[] read = IndexBootstrap.getReadWindows(conf, "/data/part-0", 3, 16);
+		assertTrue(Arrays.equals(read, IndexBootstrap.getReadWindows(conf, "/data/part-0", 3, 16)));
+		int numRead = 0;
+		for (boolean r : read) {
+			numRead += r ? 1 : 0;
+		}
+		assertEquals(4, numRead);
+		// a block always keeps one read window to scale the others from
+		conf.setFloat("map.input.index.quick.fraction", 0.01f);
+		read = IndexBootstrap.getReadWindows(conf, "/data/part-0", 3, 16);
+		numRead = 0;
+		for (boolean r : read) {
+			numRead += r ? 1 : 0;
+		}
+		assertEquals(1, numRead);
+	}
+}
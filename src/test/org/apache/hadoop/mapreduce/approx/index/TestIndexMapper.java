@@ -0,0 +1,21 @@
+package org.apache.hadoop.mapreduce.approx.index;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class TestIndexMapper {
+
+	@Test
+	public void testRowOffsets() {
+		// a segment at byte 1000 with the offsets of records 0, 3, 6 and 9
+		long[] offsets = IndexMapper.getRowOffsets("1000,3,40:35:50");
+		assertArrayEquals(new long[] {1000, 1040, 1075, 1125}, offsets);
+	}
+
+	@Test
+	public void testRowOffsetsBeyondInt() {
+		long[] offsets = IndexMapper.getRowOffsets("4294967296,100,7");
+		assertArrayEquals(new long[] {4294967296L, 4294967303L}, offsets);
+	}
+}